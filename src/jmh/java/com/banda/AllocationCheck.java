@@ -0,0 +1,84 @@
+package com.banda;
+
+import com.banda.parser.MultipartParserBenchmark;
+import com.banda.service.DownloadRelayBenchmark;
+import com.banda.service.FileSenderBenchmark;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Holds the upload, share and download paths to about zero bytes allocated per payload byte.
+ * <p>
+ * Each benchmark runs at a small and a large payload under the gc profiler. The difference in
+ * allocation per operation, divided by the difference in payload, is what every further byte
+ * costs; fixed costs per transfer, such as the roughly 1 MB Tika allocates to detect a type, cancel
+ * out. Exits with status 1 when any path goes over {@link #MAX_BYTES_PER_PAYLOAD_BYTE}.
+ */
+public final class AllocationCheck {
+    private static final double MAX_BYTES_PER_PAYLOAD_BYTE = 0.01;
+    private static final int SMALL_PAYLOAD = 1024 * 1024;
+    private static final int LARGE_PAYLOAD = 16 * 1024 * 1024; // relayed in several segments
+
+    private AllocationCheck() {
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        boolean passed = check(MultipartParserBenchmark.class, Map.of("boundaryLength", new String[]{"40"}));
+        passed &= check(FileSenderBenchmark.class, Map.of("engine", new String[]{"transferTo", "mmap", "cache", "gzip"}));
+        passed &= check(DownloadRelayBenchmark.class, Map.of("acceptEncoding", new String[]{"identity", "gzip"}));
+        System.out.println(passed ? "Allocation check passed" : "Allocation check FAILED");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean check(Class<?> benchmark, Map<String, String[]> params) throws RunnerException {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .include("^" + benchmark.getName().replace(".", "\\.") + "\\.")
+                .addProfiler(GCProfiler.class)
+                .warmupIterations(2)
+                .warmupTime(TimeValue.seconds(1))
+                .measurementIterations(3)
+                .measurementTime(TimeValue.seconds(2))
+                .forks(1)
+                .param("payloadSize", Integer.toString(SMALL_PAYLOAD), Integer.toString(LARGE_PAYLOAD));
+        params.forEach(options::param);
+
+        // Allocation per operation at [small, large] payload, by the remaining parameters
+        Map<String, double[]> allocations = new TreeMap<>();
+        for (RunResult run : new Runner(options.build()).run()) {
+            String variant = variantOf(run, params);
+            Result<?> allocation = run.getSecondaryResults().get("gc.alloc.rate.norm");
+            int index = Integer.parseInt(run.getParams().getParam("payloadSize")) == SMALL_PAYLOAD ? 0 : 1;
+            allocations.computeIfAbsent(variant, key -> new double[2])[index] = allocation.getScore();
+        }
+
+        boolean passed = true;
+        for (Map.Entry<String, double[]> entry : allocations.entrySet()) {
+            double[] bytes = entry.getValue();
+            double perByte = (bytes[1] - bytes[0]) / (LARGE_PAYLOAD - SMALL_PAYLOAD);
+            boolean ok = perByte <= MAX_BYTES_PER_PAYLOAD_BYTE;
+            passed &= ok;
+            System.out.printf("%-25s %-25s %10.0f B/op -> %10.0f B/op  %8.4f B per payload byte  %s%n",
+                    benchmark.getSimpleName(), entry.getKey(), bytes[0], bytes[1], perByte, ok ? "ok" : "FAIL");
+        }
+        return passed;
+    }
+
+    private static String variantOf(RunResult run, Map<String, String[]> params) {
+        StringBuilder variant = new StringBuilder();
+        for (String key : new TreeMap<>(params).keySet()) {
+            variant.append(key).append('=').append(run.getParams().getParam(key)).append(' ');
+        }
+        return variant.toString().trim();
+    }
+}
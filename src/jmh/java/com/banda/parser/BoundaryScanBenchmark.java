@@ -0,0 +1,113 @@
+package com.banda.parser;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the chunk-level {@link BoundaryScanner} with the per-byte circular buffer
+ * matching the parser used before it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BoundaryScanBenchmark {
+    private static final int CHUNK_SIZE = 8192;
+
+    @Param({"1048576", "16777216"})
+    private int payloadSize;
+
+    @Param({"----WebKitFormBoundary7MA4YWxkTrZu0gW"})
+    private String boundary;
+
+    private byte[] payload;
+    private byte[] boundaryPattern;
+    private byte[] endBoundaryPattern;
+
+    @Setup
+    public void setup() {
+        boundaryPattern = ("\r\n--" + boundary).getBytes(StandardCharsets.UTF_8);
+        endBoundaryPattern = ("\r\n--" + boundary + "--").getBytes(StandardCharsets.UTF_8);
+        payload = new byte[payloadSize + endBoundaryPattern.length];
+        new Random(42).nextBytes(payload);
+        System.arraycopy(endBoundaryPattern, 0, payload, payloadSize, endBoundaryPattern.length);
+    }
+
+    @Benchmark
+    public long perByteCircularBuffer() {
+        LegacyCircularBuffer buffer = new LegacyCircularBuffer(
+                Math.max(boundaryPattern.length, endBoundaryPattern.length) * 2);
+        long content = 0;
+        for (int chunkStart = 0; chunkStart < payload.length; chunkStart += CHUNK_SIZE) {
+            int chunkEnd = Math.min(chunkStart + CHUNK_SIZE, payload.length);
+            for (int i = chunkStart; i < chunkEnd; i++) {
+                buffer.add(payload[i]);
+                if (buffer.containsPattern(endBoundaryPattern) || buffer.containsPattern(boundaryPattern)) {
+                    return content;
+                }
+                content++;
+            }
+        }
+        return content;
+    }
+
+    @Benchmark
+    public long chunkScanner(Blackhole blackhole) {
+        BoundaryScanner scanner = new BoundaryScanner(boundaryPattern);
+        byte[] window = new byte[CHUNK_SIZE + scanner.length()];
+        int carried = 0;
+        long content = 0;
+        for (int chunkStart = 0; chunkStart < payload.length; chunkStart += CHUNK_SIZE) {
+            int read = Math.min(CHUNK_SIZE, payload.length - chunkStart);
+            System.arraycopy(payload, chunkStart, window, carried, read);
+            int available = carried + read;
+            int match = scanner.indexOf(window, 0, available);
+            if (match != -1) {
+                return content + match;
+            }
+            int keep = scanner.partialMatchLength(window, 0, available);
+            content += available - keep;
+            blackhole.consume(window);
+            System.arraycopy(window, available - keep, window, 0, keep);
+            carried = keep;
+        }
+        return content;
+    }
+
+    /** Copy of the per-byte matcher the parser used before the chunk scanner. */
+    private static final class LegacyCircularBuffer {
+        private final byte[] buffer;
+        private int head = 0;
+        private int size = 0;
+
+        LegacyCircularBuffer(int capacity) {
+            this.buffer = new byte[capacity];
+        }
+
+        void add(byte b) {
+            buffer[(head + size) % buffer.length] = b;
+            if (size < buffer.length) {
+                size++;
+            } else {
+                head = (head + 1) % buffer.length;
+            }
+        }
+
+        boolean containsPattern(byte[] pattern) {
+            if (size < pattern.length) return false;
+            for (int i = 0; i < pattern.length; i++) {
+                int bufferIndex = (head + size - pattern.length + i) % buffer.length;
+                if (buffer[bufferIndex] != pattern[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
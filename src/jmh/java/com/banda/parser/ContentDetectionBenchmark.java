@@ -0,0 +1,108 @@
+package com.banda.parser;
+
+import com.banda.utils.FileExtensionHelper;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.tika.Tika;
+import org.apache.tika.mime.MimeTypeException;
+import org.apache.tika.mime.MimeTypes;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Time to land one uploaded part on disk under its final name: detecting the type from the
+ * first buffer while streaming, against writing a .tmp file, re-reading it with Tika and
+ * renaming it as the parser did before.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContentDetectionBenchmark {
+    private static final int CHUNK_SIZE = 8192;
+    private static final long MAX_SIZE = Long.MAX_VALUE;
+    private static final int MAX_PENDING_WRITES = 4;
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final Tika tika = new Tika();
+
+    @Param({"16384", "1048576", "16777216"})
+    private int payloadSize;
+
+    private byte[] payload;
+    private Path uploadDir;
+
+    @Setup
+    public void setup() throws IOException {
+        payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+        System.arraycopy(PNG_SIGNATURE, 0, payload, 0, PNG_SIGNATURE.length);
+        uploadDir = Files.createTempDirectory("banda-detect-bench");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(uploadDir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public Path detectWhileStreaming() throws IOException {
+        String baseName = "upload_" + UUID.randomUUID();
+        ContentSink sink = new ContentSink(
+                (prefix, length) -> uploadDir.resolve(baseName
+                        + FileExtensionHelper.detectExtension(prefix, length, "image/png", "photo.png")),
+                FileExtensionHelper.DETECTION_PREFIX_LENGTH, MAX_SIZE, MAX_PENDING_WRITES);
+        writeChunks(sink);
+        return delete(sink.file());
+    }
+
+    @Benchmark
+    public Path detectThenMove() throws IOException {
+        Path tmpFile = uploadDir.resolve("upload_" + UUID.randomUUID() + ".tmp");
+        ContentSink sink = new ContentSink((prefix, length) -> tmpFile, 0, MAX_SIZE, MAX_PENDING_WRITES);
+        writeChunks(sink);
+        return delete(renameWithDetectedExtension(tmpFile));
+    }
+
+    /**
+     * The parser's old second pass: reopens the finished file for Tika and renames it after the
+     * detected type, leaving .tmp when the type has no extension.
+     */
+    private static Path renameWithDetectedExtension(Path tmpFile) throws IOException {
+        String ext;
+        try {
+            ext = MimeTypes.getDefaultMimeTypes().forName(tika.detect(tmpFile)).getExtension();
+        } catch (MimeTypeException e) {
+            ext = "";
+        }
+        String baseName = FilenameUtils.getBaseName(tmpFile.getFileName().toString());
+        Path finalPath = tmpFile.resolveSibling(baseName + (ext.isEmpty() ? ".tmp" : ext));
+        return Files.move(tmpFile, finalPath, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void writeChunks(ContentSink sink) throws IOException {
+        try (sink) {
+            for (int offset = 0; offset < payload.length; offset += CHUNK_SIZE) {
+                sink.write(payload, offset, Math.min(CHUNK_SIZE, payload.length - offset));
+            }
+        }
+    }
+
+    private static Path delete(Path file) throws IOException {
+        Files.delete(file);
+        return file;
+    }
+}
@@ -0,0 +1,75 @@
+package com.banda.parser;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Upload ceiling of {@link IntegratedFileParser#parseMultipartFile}: one file part parsed from
+ * memory and written to disk, across payload sizes and boundary lengths (browsers send about 40
+ * characters, RFC 2046 allows up to 70).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultipartParserBenchmark {
+    @Param({"16384", "1048576", "16777216"})
+    private int payloadSize;
+
+    @Param({"16", "40", "70"})
+    private int boundaryLength;
+
+    private final IntegratedFileParser parser = new IntegratedFileParser();
+    private byte[] body;
+    private String boundary;
+    private Path uploadDir;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        StringBuilder builder = new StringBuilder(boundaryLength);
+        while (builder.length() < boundaryLength) {
+            builder.append((char) ('a' + random.nextInt(26)));
+        }
+        boundary = builder.toString();
+        byte[] payload = new byte[payloadSize];
+        random.nextBytes(payload);
+
+        ByteArrayOutputStream multipart = new ByteArrayOutputStream(payloadSize + 512);
+        multipart.write(("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"payload.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        multipart.write(payload);
+        multipart.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        body = multipart.toByteArray();
+        uploadDir = Files.createTempDirectory("banda-parser-bench");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(uploadDir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public ParseResult parse() throws IOException {
+        ParseResult result = parser.parseMultipartFile(new ByteArrayInputStream(body), boundary, uploadDir.toString());
+        Files.delete(result.filePath());
+        return result;
+    }
+}
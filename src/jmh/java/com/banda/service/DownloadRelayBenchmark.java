@@ -0,0 +1,177 @@
+package com.banda.service;
+
+import com.banda.concurrent.ExecutionMode;
+import com.banda.concurrent.InstrumentedExecutor;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FileDownloadService#downloadAndStreamFile} against a running {@link Filesharer} on
+ * loopback: handshake, reply header, segmented fetches and the copy to the client. The HTTP
+ * side is a stub exchange that discards the body, so the server's own overhead is left out.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DownloadRelayBenchmark {
+    @Param({"1048576", "67108864"})
+    private int payloadSize;
+
+    @Param({"identity", "gzip"})
+    private String acceptEncoding;
+
+    private Filesharer filesharer;
+    private ExecutorService segmentExecutor;
+    private FileDownloadService downloadService;
+    private int code;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder(payloadSize + 128);
+        while (text.length() < payloadSize) {
+            text.append("2026-01-01 12:00:00 INFO request ").append(random.nextInt(1_000_000))
+                    .append(" served in ").append(random.nextInt(500)).append(" ms\n");
+        }
+        Path file = Files.createTempFile("banda-relay-bench", ".txt");
+        Files.write(file, text.substring(0, payloadSize).getBytes(StandardCharsets.US_ASCII));
+
+        filesharer = new Filesharer(Filesharer.Settings.fromSystemProperties(0,
+                InstrumentedExecutor.create("bench-sender", ExecutionMode.VIRTUAL, 0)));
+        filesharer.start();
+        code = filesharer.offerFile(file.toString()); // deleted when the share is evicted on close
+        segmentExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        downloadService = new FileDownloadService(filesharer.getTransferPort(), segmentExecutor);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        filesharer.close();
+        segmentExecutor.close();
+    }
+
+    /**
+     * @return bytes written to the client
+     */
+    @Benchmark
+    public long download() {
+        RelayExchange exchange = new RelayExchange(acceptEncoding);
+        downloadService.downloadAndStreamFile(exchange, code);
+        return exchange.body.getByteCount();
+    }
+
+    /** Just enough of an exchange for the relay: request headers in, response discarded. */
+    private static final class RelayExchange extends HttpExchange {
+        private final Headers requestHeaders = new Headers();
+        private final Headers responseHeaders = new Headers();
+        private final CountingOutputStream body = new CountingOutputStream(NullOutputStream.INSTANCE);
+        private int responseCode = -1;
+
+        private RelayExchange(String acceptEncoding) {
+            requestHeaders.add("Accept-Encoding", acceptEncoding);
+        }
+
+        @Override
+        public Headers getRequestHeaders() {
+            return requestHeaders;
+        }
+
+        @Override
+        public Headers getResponseHeaders() {
+            return responseHeaders;
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return URI.create("/api/download");
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return "GET";
+        }
+
+        @Override
+        public HttpContext getHttpContext() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return InputStream.nullInputStream();
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return body;
+        }
+
+        @Override
+        public void sendResponseHeaders(int rCode, long responseLength) {
+            responseCode = rCode;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return new InetSocketAddress(0);
+        }
+
+        @Override
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return new InetSocketAddress(0);
+        }
+
+        @Override
+        public String getProtocol() {
+            return "HTTP/1.1";
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return null;
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+        }
+
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return null;
+        }
+    }
+}
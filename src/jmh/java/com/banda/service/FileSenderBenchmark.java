@@ -0,0 +1,102 @@
+package com.banda.service;
+
+import com.banda.ratelimit.RateLimiter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One download of a shared file through {@link Filesharer.FileSenderHandler} over loopback,
+ * read to the end by the benchmark thread, for each send engine: {@code transferTo} from the
+ * file, a shared memory mapping, the in-memory content cache, and streamed gzip.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileSenderBenchmark {
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    @Param({"1048576", "67108864"})
+    private int payloadSize;
+
+    @Param({"transferTo", "mmap", "cache", "gzip"})
+    private String engine;
+
+    private Path file;
+    private ServerSocketChannel server;
+    private ExecutorService senders;
+    private ContentCache contentCache;
+    private MappedFiles mappedFiles;
+    private String compression;
+    private ByteBuffer readBuffer;
+
+    @Setup
+    public void setup() throws IOException {
+        // Log-like text, so the gzip engine has something to compress
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder(payloadSize + 128);
+        while (text.length() < payloadSize) {
+            text.append("2026-01-01 12:00:00 INFO request ").append(random.nextInt(1_000_000))
+                    .append(" served in ").append(random.nextInt(500)).append(" ms\n");
+        }
+        file = Files.createTempFile("banda-sender-bench", ".txt");
+        Files.write(file, text.substring(0, payloadSize).getBytes(StandardCharsets.US_ASCII));
+
+        switch (engine) {
+            case "mmap" -> mappedFiles = new MappedFiles(0);
+            case "cache" -> contentCache = new ContentCache(2L * payloadSize, payloadSize, 0);
+            case "gzip" -> compression = "gzip";
+            default -> { }
+        }
+        server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        senders = Executors.newVirtualThreadPerTaskExecutor();
+        readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        senders.close();
+        server.close();
+        if (mappedFiles != null) {
+            mappedFiles.close();
+        }
+        Files.delete(file);
+    }
+
+    /**
+     * @return bytes received, the transfer header included
+     */
+    @Benchmark
+    public long download() throws IOException {
+        try (SocketChannel client = SocketChannel.open(server.getLocalAddress())) {
+            SocketChannel accepted = server.accept();
+            senders.execute(new Filesharer.FileSenderHandler(accepted, List.of(file.toString()),
+                    List.of(file.getFileName().toString()), null,
+                    new Filesharer.FileSenderHandler.Options(null, compression, contentCache, mappedFiles,
+                            RateLimiter.UNLIMITED, 0)));
+            long received = 0;
+            int read;
+            while ((read = client.read(readBuffer)) != -1) {
+                received += read;
+                readBuffer.clear();
+            }
+            return received;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.banda.utils;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the Tika lookups on the upload and download paths: content detection of an upload's
+ * first bytes, and the name-based MIME type and compressibility checks made for every download.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileExtensionHelperBenchmark {
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+    @Param({"png", "pdf", "text", "unknown"})
+    private String content;
+
+    private byte[] prefix;
+    private String declaredType;
+    private String fileName;
+    private String storedName;
+
+    @Setup
+    public void setup() {
+        prefix = new byte[FileExtensionHelper.DETECTION_PREFIX_LENGTH];
+        Random random = new Random(42);
+        switch (content) {
+            case "png" -> {
+                random.nextBytes(prefix);
+                System.arraycopy(PNG_SIGNATURE, 0, prefix, 0, PNG_SIGNATURE.length);
+                declaredType = "image/png";
+                fileName = "photo.png";
+            }
+            case "pdf" -> {
+                random.nextBytes(prefix);
+                byte[] magic = "%PDF-1.7\n".getBytes(StandardCharsets.US_ASCII);
+                System.arraycopy(magic, 0, prefix, 0, magic.length);
+                declaredType = "application/pdf";
+                fileName = "report.pdf";
+            }
+            case "text" -> {
+                byte[] line = "2026-01-01 12:00:00 INFO request served in 12 ms\n".getBytes(StandardCharsets.US_ASCII);
+                for (int i = 0; i < prefix.length; i++) {
+                    prefix[i] = line[i % line.length];
+                }
+                declaredType = "text/plain";
+                fileName = "server.log";
+            }
+            default -> {
+                random.nextBytes(prefix);
+                declaredType = "application/octet-stream";
+                fileName = "blob";
+            }
+        }
+        // The name-based lookups see stored names: <sha256>.<detected extension>
+        storedName = "0".repeat(64) + FileExtensionHelper.detectExtension(prefix, prefix.length, declaredType, fileName);
+    }
+
+    @Benchmark
+    public String detectExtension() {
+        return FileExtensionHelper.detectExtension(prefix, prefix.length, declaredType, fileName);
+    }
+
+    @Benchmark
+    public String mimeTypeOf() {
+        return FileExtensionHelper.mimeTypeOf(storedName);
+    }
+
+    @Benchmark
+    public boolean isCompressible() {
+        return FileExtensionHelper.isCompressible(storedName);
+    }
+}
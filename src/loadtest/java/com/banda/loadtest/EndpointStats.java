@@ -0,0 +1,72 @@
+package com.banda.loadtest;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Outcomes of one endpoint within a stage. Every latency is kept, so percentiles are exact;
+ * a stage produces at most a few hundred thousand samples.
+ */
+final class EndpointStats {
+    private final String name;
+    private long[] latencies = new long[1024];
+    private int count;
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final Map<String, LongAdder> failureReasons = new ConcurrentHashMap<>();
+
+    EndpointStats(String name) {
+        this.name = name;
+    }
+
+    void success(long latencyNanos, long transferred) {
+        bytes.add(transferred);
+        synchronized (this) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latencyNanos;
+        }
+    }
+
+    void failure(String reason) {
+        failures.increment();
+        failureReasons.computeIfAbsent(reason, key -> new LongAdder()).increment();
+    }
+
+    static String header() {
+        return String.format("%-10s %9s %8s %10s %10s %9s %9s %9s %9s",
+                "endpoint", "ok", "failed", "ops/s", "MiB/s", "p50 ms", "p99 ms", "p999 ms", "max ms");
+    }
+
+    String report(long elapsedNanos) {
+        long[] sorted;
+        synchronized (this) {
+            sorted = Arrays.copyOf(latencies, count);
+        }
+        Arrays.sort(sorted);
+        double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+        StringBuilder report = new StringBuilder(String.format("%-10s %9d %8d %10.1f %10.1f %9.1f %9.1f %9.1f %9.1f",
+                name, sorted.length, failures.sum(), sorted.length / seconds, bytes.sum() / seconds / (1024 * 1024),
+                millis(percentile(sorted, 0.50)), millis(percentile(sorted, 0.99)),
+                millis(percentile(sorted, 0.999)), millis(sorted.length == 0 ? 0 : sorted[sorted.length - 1])));
+        failureReasons.forEach((reason, times) ->
+                report.append(String.format("%n    %d x %s", times.sum(), reason)));
+        return report.toString();
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
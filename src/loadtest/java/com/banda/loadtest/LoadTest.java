@@ -0,0 +1,255 @@
+package com.banda.loadtest;
+
+import com.banda.concurrent.InstrumentedExecutor;
+import com.banda.controller.BandaFileController;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Offline load test: starts a {@link BandaFileController} in this JVM on an ephemeral port and
+ * drives it with a mix of uploads and downloads from concurrent HTTP clients, some of them
+ * throttled to a slow link. The workload runs in stages of growing client counts, and every
+ * stage reports latency percentiles, throughput and failures per endpoint, so the point where
+ * latency or failures take off is the server's concurrency limit.
+ * <p>
+ * Uploads of one size all carry the same content, so the blob store keeps a single copy per
+ * size and the disk does not fill up; downloads pick among the most recent shares.
+ * <pre>
+ *   mvn -Ploadtest test-compile exec:exec -Dloadtest.args="clients=16,64,256 duration=30"
+ * </pre>
+ * See {@link LoadTestConfig} for every option. Server settings are the usual {@code banda.*}
+ * system properties, passed with {@code -Dloadtest.jvmArgs}.
+ */
+public final class LoadTest {
+    private static final int RECENT_SHARES = 256;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+    private static final int READ_TIMEOUT_MILLIS = 120_000;
+    private static final String BOUNDARY = "----BandaLoadTest7MA4YWxkTrZu0gW";
+    private static final Pattern SHARE_CODE = Pattern.compile("\"port\":(\\d+)");
+
+    private final LoadTestConfig config;
+    private final URI baseUri;
+    private final List<byte[]> payloads = new ArrayList<>();
+    private final AtomicReferenceArray<Share> recentShares = new AtomicReferenceArray<>(RECENT_SHARES);
+    private final AtomicInteger sharesOffered = new AtomicInteger();
+
+    private LoadTest(LoadTestConfig config, int port) {
+        this.config = config;
+        this.baseUri = URI.create("http://localhost:" + port);
+        Random random = new Random(42);
+        for (int size : config.sizes()) {
+            byte[] payload = new byte[size];
+            random.nextBytes(payload);
+            payloads.add(payload);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTestConfig config = LoadTestConfig.parse(args);
+        // Ephemeral transfer port, and a registry small enough that old shares (and their files) go away
+        System.setProperty("banda.transfer.port", System.getProperty("banda.transfer.port", "0"));
+        System.setProperty("banda.share.max.count", System.getProperty("banda.share.max.count",
+                String.valueOf(RECENT_SHARES * 2)));
+
+        // Every client keeps its connection alive between operations
+        System.setProperty("http.maxConnections", String.valueOf(config.clients().stream().max(Integer::compare).orElseThrow()));
+
+        BandaFileController controller = new BandaFileController(0);
+        controller.start();
+        try {
+            LoadTest loadTest = new LoadTest(config, controller.getPort());
+            loadTest.seed();
+            for (int stage = 0; stage < config.clients().size(); stage++) {
+                loadTest.runStage(stage + 1, config.clients().get(stage), controller);
+            }
+        } finally {
+            controller.stop();
+        }
+    }
+
+    /** One share per size, so downloads have something to fetch from the start. */
+    private void seed() throws IOException {
+        EndpointStats stats = new EndpointStats("seed");
+        for (int i = 0; i < payloads.size(); i++) {
+            if (!upload(i, null, stats)) {
+                throw new IOException("Could not seed a share of " + payloads.get(i).length + " bytes: "
+                        + stats.report(1));
+            }
+        }
+    }
+
+    private void runStage(int stage, int clients, BandaFileController controller) throws InterruptedException {
+        int slowClients = (int) Math.round(clients * config.slowShare());
+        System.out.printf("%nStage %d/%d: %d clients (%d slow at %d B/s) for %d s, sizes %s, %.0f%% uploads%n",
+                stage, config.clients().size(), clients, slowClients, config.slowRate(), config.durationSeconds(),
+                config.sizes(), config.uploadShare() * 100);
+        // Slow clients are reported apart, their own transfers would otherwise make up the tail
+        EndpointStats uploads = new EndpointStats("upload");
+        EndpointStats downloads = new EndpointStats("download");
+        EndpointStats slowUploads = new EndpointStats("upload*");
+        EndpointStats slowDownloads = new EndpointStats("download*");
+        long startNanos = System.nanoTime();
+        long deadline = startNanos + TimeUnit.SECONDS.toNanos(config.durationSeconds());
+        List<Thread> workers = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            boolean slow = i < slowClients;
+            Runnable client = slow
+                    ? () -> runClient(true, deadline, slowUploads, slowDownloads)
+                    : () -> runClient(false, deadline, uploads, downloads);
+            // Platform threads, so clients never compete with the server for virtual thread carriers
+            workers.add(Thread.ofPlatform().name("loadtest-client-" + i).start(client));
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        System.out.println(EndpointStats.header());
+        System.out.println(uploads.report(elapsedNanos));
+        System.out.println(downloads.report(elapsedNanos));
+        if (slowClients > 0) {
+            System.out.println(slowUploads.report(elapsedNanos));
+            System.out.println(slowDownloads.report(elapsedNanos));
+            System.out.println("(* slow clients)");
+        }
+        InstrumentedExecutor http = controller.getHttpExecutor();
+        InstrumentedExecutor sender = controller.getFilesharer().getSenderExecutor();
+        System.out.printf("server: %d requests and %d transfers completed so far, %d shares registered%n",
+                http.completedCount(), sender.completedCount(), controller.getFilesharer().getShareRegistry().size());
+    }
+
+    /** Runs operations back to back until the stage ends; the last one is allowed to finish. */
+    private void runClient(boolean slow, long deadline, EndpointStats uploads, EndpointStats downloads) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (System.nanoTime() - deadline < 0) {
+            Throttle throttle = slow ? new Throttle(config.slowRate()) : null;
+            if (random.nextDouble() < config.uploadShare()) {
+                upload(random.nextInt(payloads.size()), throttle, uploads);
+            } else {
+                download(throttle, downloads);
+            }
+        }
+    }
+
+    private boolean upload(int sizeIndex, Throttle throttle, EndpointStats stats) {
+        byte[] payload = payloads.get(sizeIndex);
+        byte[] head = ("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"load-" + payload.length + ".bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        long length = head.length + payload.length + tail.length;
+        long startNanos = System.nanoTime();
+        HttpURLConnection connection = null;
+        try {
+            connection = open("/upload");
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(length);
+            connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+            try (OutputStream body = connection.getOutputStream()) {
+                body.write(head);
+                if (throttle == null) {
+                    body.write(payload);
+                } else {
+                    for (int offset = 0; offset < payload.length; ) {
+                        int chunk = throttle.chunk(payload.length - offset);
+                        body.write(payload, offset, chunk);
+                        offset += chunk;
+                        throttle.pace(chunk);
+                    }
+                }
+                body.write(tail);
+            }
+            int status = connection.getResponseCode();
+            String response = new String(readAll(connection, status), StandardCharsets.UTF_8);
+            Matcher code = SHARE_CODE.matcher(response);
+            if (status != 200 || !code.find()) {
+                stats.failure("HTTP " + status);
+                return false;
+            }
+            stats.success(System.nanoTime() - startNanos, length);
+            recentShares.set(sharesOffered.getAndIncrement() % RECENT_SHARES,
+                    new Share(Integer.parseInt(code.group(1)), payload.length));
+            return true;
+        } catch (IOException e) {
+            fail(connection, stats, e);
+            return false;
+        }
+    }
+
+    private void download(Throttle throttle, EndpointStats stats) {
+        // Seeding filled the first slots, and a slot is only ever replaced by a newer share
+        int known = Math.min(sharesOffered.get(), RECENT_SHARES);
+        Share share = recentShares.get(ThreadLocalRandom.current().nextInt(known));
+        long startNanos = System.nanoTime();
+        HttpURLConnection connection = null;
+        try {
+            connection = open("/download/" + share.code());
+            int status = connection.getResponseCode();
+            if (status != 200) {
+                readAll(connection, status);
+                stats.failure("HTTP " + status);
+                return;
+            }
+            long received = 0;
+            try (InputStream body = connection.getInputStream()) {
+                byte[] buffer = new byte[READ_BUFFER_SIZE];
+                int read;
+                while ((read = body.read(buffer, 0, throttle == null ? buffer.length : throttle.chunk(buffer.length))) != -1) {
+                    received += read;
+                    if (throttle != null) {
+                        throttle.pace(read);
+                    }
+                }
+            }
+            if (received != share.size()) {
+                stats.failure("short body");
+            } else {
+                stats.success(System.nanoTime() - startNanos, received);
+            }
+        } catch (IOException e) {
+            fail(connection, stats, e);
+        }
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) baseUri.resolve(path).toURL().openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        return connection;
+    }
+
+    /** Reads the whole body, the error body for a failed status, so the connection can be reused. */
+    private static byte[] readAll(HttpURLConnection connection, int status) throws IOException {
+        InputStream body = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if (body == null) {
+            return new byte[0];
+        }
+        try (body) {
+            return body.readAllBytes();
+        }
+    }
+
+    private static void fail(HttpURLConnection connection, EndpointStats stats, IOException e) {
+        stats.failure(e.getClass().getSimpleName());
+        if (connection != null) {
+            connection.disconnect();
+        }
+    }
+
+    private record Share(int code, long size) {}
+}
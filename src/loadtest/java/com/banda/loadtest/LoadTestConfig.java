@@ -0,0 +1,68 @@
+package com.banda.loadtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Workload of a load test run, from {@code key=value} arguments:
+ * <ul>
+ *   <li>{@code clients} - concurrent clients per stage, comma separated (16,64,256)</li>
+ *   <li>{@code duration} - seconds each stage runs (30)</li>
+ *   <li>{@code sizes} - file sizes picked at random, with an optional k or m suffix (16k,1m,16m)</li>
+ *   <li>{@code uploads} - share of operations that are uploads, the rest are downloads (0.2)</li>
+ *   <li>{@code slow} - share of clients that send and read at {@code slowRate} (0.1)</li>
+ *   <li>{@code slowRate} - bytes per second of a slow client, with an optional k or m suffix (1m)</li>
+ * </ul>
+ */
+record LoadTestConfig(List<Integer> clients, int durationSeconds, List<Integer> sizes, double uploadShare,
+                      double slowShare, long slowRate) {
+
+    static LoadTestConfig parse(String[] args) {
+        List<Integer> clients = List.of(16, 64, 256);
+        int duration = 30;
+        List<Integer> sizes = List.of(16 * 1024, 1024 * 1024, 16 * 1024 * 1024);
+        double uploads = 0.2;
+        double slow = 0.1;
+        long slowRate = 1024 * 1024;
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals == -1) {
+                throw new IllegalArgumentException("Expected key=value, got: " + arg);
+            }
+            String value = arg.substring(equals + 1).trim();
+            switch (arg.substring(0, equals).trim()) {
+                case "clients" -> clients = parseList(value, false);
+                case "duration" -> duration = Integer.parseInt(value);
+                case "sizes" -> sizes = parseList(value, true);
+                case "uploads" -> uploads = Double.parseDouble(value);
+                case "slow" -> slow = Double.parseDouble(value);
+                case "slowRate" -> slowRate = parseSize(value);
+                default -> throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (clients.isEmpty() || sizes.isEmpty() || duration <= 0 || slowRate <= 0) {
+            throw new IllegalArgumentException("clients, sizes, duration and slowRate must be positive");
+        }
+        return new LoadTestConfig(clients, duration, sizes, uploads, slow, slowRate);
+    }
+
+    private static List<Integer> parseList(String value, boolean sizes) {
+        List<Integer> values = new ArrayList<>();
+        for (String item : value.split(",")) {
+            values.add(Math.toIntExact(sizes ? parseSize(item.trim()) : Long.parseLong(item.trim())));
+        }
+        return List.copyOf(values);
+    }
+
+    private static long parseSize(String value) {
+        String lower = value.toLowerCase(Locale.ROOT);
+        if (lower.endsWith("k")) {
+            return Long.parseLong(lower.substring(0, lower.length() - 1)) * 1024;
+        }
+        if (lower.endsWith("m")) {
+            return Long.parseLong(lower.substring(0, lower.length() - 1)) * 1024 * 1024;
+        }
+        return Long.parseLong(lower);
+    }
+}
@@ -0,0 +1,40 @@
+package com.banda.loadtest;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces a transfer to a fixed byte rate by sleeping once it is ahead of schedule, the way a
+ * client on a slow link would stall. Not thread-safe, one per transfer.
+ */
+final class Throttle {
+    private static final int MAX_CHUNK = 16 * 1024; // small steps keep the pace smooth
+
+    private final long bytesPerSecond;
+    private final long startNanos = System.nanoTime();
+    private long bytes;
+
+    Throttle(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /** Most bytes to move in one step. */
+    int chunk(int requested) {
+        return Math.min(requested, MAX_CHUNK);
+    }
+
+    /** Records {@code count} more bytes and waits until the rate allows them. */
+    void pace(int count) throws InterruptedIOException {
+        bytes += count;
+        long dueNanos = startNanos + bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+        long waitNanos = dueNanos - System.nanoTime();
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+}
@@ -2,7 +2,6 @@ package com.banda;
 
 
 import com.banda.controller.BandaFileController;
-import com.banda.controller.FileController;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -0,0 +1,238 @@
+package com.banda.buffers;
+
+import com.banda.metrics.Counter;
+import com.banda.metrics.Gauge;
+import com.banda.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared pool of I/O buffers in a few fixed slab sizes, so transfers reuse buffers instead of
+ * allocating their own. A request is served from the smallest slab that fits it; requests
+ * larger than the largest slab get a buffer of their own that is not kept.
+ * <p>
+ * Released buffers are kept for reuse up to an idle budget and dropped beyond it, so the pool
+ * never holds more than the budget while nothing is borrowed. Borrowing never blocks.
+ * <p>
+ * Two pools are shared by the whole process: {@link #direct()} for channel I/O, where a direct
+ * buffer avoids the JDK's copy into a temporary native buffer, and {@link #heap()} for stream
+ * APIs that only take a {@code byte[]}. Both are configured from system properties:
+ * <ul>
+ *     <li>{@code banda.buffers.slabs} slab sizes, {@code 16k,64k,256k,4m} by default</li>
+ *     <li>{@code banda.buffers.direct.idle} and {@code banda.buffers.heap.idle} idle budgets, {@code 64m} each</li>
+ *     <li>{@code banda.buffers.leaks} leak detection: {@code off}, {@code simple} (default) reports
+ *         buffers garbage collected without being released, {@code paranoid} also records where
+ *         each was borrowed</li>
+ * </ul>
+ */
+public final class BufferPool {
+    private static final Logger log = LoggerFactory.getLogger(BufferPool.class);
+    private static final Cleaner leakDetector = Cleaner.create();
+
+    private static final BufferPool DIRECT = fromSystemProperties("direct", true);
+    private static final BufferPool HEAP = fromSystemProperties("heap", false);
+
+    /** How lost buffers are found. */
+    public enum LeakDetection {
+        OFF, SIMPLE, PARANOID
+    }
+
+    private final String name;
+    private final boolean direct;
+    private final SizeClass[] sizeClasses;
+    private final long maxIdleBytes;
+    private final LeakDetection leakDetection;
+    private final AtomicLong idleBytes = new AtomicLong();
+
+    private final Gauge leasedBytes;
+    private final Counter allocations;
+    private final Counter unpooled;
+    private final Counter leaks;
+
+    /**
+     * @param slabSizes buffer sizes kept by the pool
+     * @param maxIdleBytes most bytes kept for reuse while not borrowed
+     */
+    public BufferPool(String name, boolean direct, int[] slabSizes, long maxIdleBytes, LeakDetection leakDetection) {
+        this.name = name;
+        this.direct = direct;
+        this.sizeClasses = Arrays.stream(slabSizes).sorted().distinct().mapToObj(SizeClass::new).toArray(SizeClass[]::new);
+        this.maxIdleBytes = maxIdleBytes;
+        this.leakDetection = leakDetection;
+
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        this.leasedBytes = metrics.gauge("banda_buffer_pool_leased_bytes", "Bytes of pooled buffers borrowed", "pool", name);
+        metrics.gauge("banda_buffer_pool_idle_bytes", "Bytes of pooled buffers kept for reuse", "pool", name, idleBytes::get);
+        this.allocations = metrics.counter("banda_buffer_pool_allocations_total",
+                "Buffers the pool had to allocate", "pool", name);
+        this.unpooled = metrics.counter("banda_buffer_pool_unpooled_total",
+                "Requests larger than the largest slab, served by a buffer of their own", "pool", name);
+        this.leaks = metrics.counter("banda_buffer_pool_leaks_total",
+                "Buffers garbage collected without being released", "pool", name);
+    }
+
+    public static BufferPool fromSystemProperties(String name, boolean direct) {
+        String slabs = System.getProperty("banda.buffers.slabs", "16k,64k,256k,4m");
+        int[] slabSizes = Arrays.stream(slabs.split(",")).mapToLong(BufferPool::parseSize).mapToInt(Math::toIntExact).toArray();
+        long maxIdle = parseSize(System.getProperty("banda.buffers." + name + ".idle", "64m"));
+        LeakDetection leakDetection = LeakDetection.valueOf(
+                System.getProperty("banda.buffers.leaks", "simple").toUpperCase(Locale.ROOT));
+        return new BufferPool(name, direct, slabSizes, maxIdle, leakDetection);
+    }
+
+    /** The shared pool of direct buffers, for reads and writes on channels. */
+    public static BufferPool direct() {
+        return DIRECT;
+    }
+
+    /** The shared pool of heap buffers, for streams that read and write {@code byte[]}. */
+    public static BufferPool heap() {
+        return HEAP;
+    }
+
+    /**
+     * Borrows a buffer of at least {@code capacity} bytes; it must be closed when done with.
+     */
+    public PooledBuffer acquire(int capacity) {
+        SizeClass sizeClass = sizeClassFor(capacity);
+        ByteBuffer buffer = null;
+        if (sizeClass == null) {
+            unpooled.increment();
+        } else {
+            buffer = sizeClass.idle.poll();
+            if (buffer != null) {
+                idleBytes.addAndGet(-buffer.capacity());
+            }
+        }
+        if (buffer == null) {
+            int size = sizeClass == null ? capacity : sizeClass.size;
+            buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+            allocations.increment();
+        }
+        leasedBytes.add(buffer.capacity());
+        buffer.clear().limit(capacity);
+
+        Lease lease = new Lease(this, sizeClass, buffer.capacity(),
+                leakDetection == LeakDetection.PARANOID ? new Throwable("Borrowed here") : null);
+        return new PooledBuffer(buffer, capacity, lease, leakDetection == LeakDetection.OFF ? null : leakDetector);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long leasedBytes() {
+        return leasedBytes.value();
+    }
+
+    public long idleBytes() {
+        return idleBytes.get();
+    }
+
+    public long leakCount() {
+        return leaks.count();
+    }
+
+    void recycle(ByteBuffer buffer, SizeClass sizeClass) {
+        leasedBytes.add(-buffer.capacity());
+        if (sizeClass == null) {
+            return;
+        }
+        if (idleBytes.addAndGet(buffer.capacity()) > maxIdleBytes) {
+            idleBytes.addAndGet(-buffer.capacity());
+            return; // over budget, left to the garbage collector
+        }
+        buffer.clear();
+        sizeClass.idle.push(buffer);
+    }
+
+    private SizeClass sizeClassFor(int capacity) {
+        for (SizeClass sizeClass : sizeClasses) {
+            if (capacity <= sizeClass.size) {
+                return sizeClass;
+            }
+        }
+        return null;
+    }
+
+    private static long parseSize(String value) {
+        String size = value.trim().toLowerCase(Locale.ROOT);
+        long unit = switch (size.isEmpty() ? ' ' : size.charAt(size.length() - 1)) {
+            case 'k' -> 1024L;
+            case 'm' -> 1024L * 1024;
+            case 'g' -> 1024L * 1024 * 1024;
+            default -> 1;
+        };
+        return Long.parseLong(unit == 1 ? size : size.substring(0, size.length() - 1)) * unit;
+    }
+
+    static final class SizeClass {
+        private final int size;
+        // LIFO, so the most recently used and likely still cached buffer goes out first
+        private final ConcurrentLinkedDeque<ByteBuffer> idle = new ConcurrentLinkedDeque<>();
+
+        private SizeClass(int size) {
+            this.size = size;
+        }
+    }
+
+    /**
+     * State of one loan, shared by the {@link PooledBuffer} and the leak detector. It must not
+     * refer to the {@code PooledBuffer}, or that would never become unreachable.
+     */
+    static final class Lease implements Runnable {
+        private final BufferPool pool;
+        private final SizeClass sizeClass;
+        private final int slabCapacity;
+        private final Throwable origin;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Lease(BufferPool pool, SizeClass sizeClass, int slabCapacity, Throwable origin) {
+            this.pool = pool;
+            this.sizeClass = sizeClass;
+            this.slabCapacity = slabCapacity;
+            this.origin = origin;
+        }
+
+        BufferPool pool() {
+            return pool;
+        }
+
+        SizeClass sizeClass() {
+            return sizeClass;
+        }
+
+        /** @return true for the first release only */
+        boolean release() {
+            return released.compareAndSet(false, true);
+        }
+
+        /**
+         * Runs once the lease is closed or has become unreachable. A buffer that was never
+         * released may still be referenced by whoever dropped the lease, so it is not reused.
+         */
+        @Override
+        public void run() {
+            if (!release()) {
+                return;
+            }
+            pool.leasedBytes.add(-slabCapacity);
+            pool.leaks.increment();
+            if (origin != null) {
+                log.warn("Buffer of {} bytes from the {} pool was garbage collected without being released",
+                        slabCapacity, pool.name, origin);
+            } else {
+                log.warn("Buffer of {} bytes from the {} pool was garbage collected without being released; "
+                        + "run with -Dbanda.buffers.leaks=paranoid to see where it was borrowed", slabCapacity, pool.name);
+            }
+        }
+    }
+}
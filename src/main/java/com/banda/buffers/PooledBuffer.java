@@ -0,0 +1,57 @@
+package com.banda.buffers;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+
+/**
+ * A buffer borrowed from a {@link BufferPool}, handed back by {@link #close()}.
+ * <p>
+ * Keep the {@code PooledBuffer} itself reachable while its bytes are in use; a lease that is
+ * garbage collected without being closed is reported as a leak and its buffer is not reused.
+ */
+public final class PooledBuffer implements AutoCloseable {
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final BufferPool.Lease lease;
+    private final Cleaner.Cleanable cleanable;
+
+    /**
+     * @param leakDetector watches for the lease becoming unreachable while borrowed, or null
+     */
+    PooledBuffer(ByteBuffer buffer, int capacity, BufferPool.Lease lease, Cleaner leakDetector) {
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.lease = lease;
+        this.cleanable = leakDetector == null ? null : leakDetector.register(this, lease);
+    }
+
+    /** The buffer, cleared, with its limit at the requested capacity. */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * The backing array of a heap buffer; only its first {@link #capacity()} bytes belong to the lease.
+     *
+     * @throws UnsupportedOperationException for a direct buffer
+     */
+    public byte[] array() {
+        return buffer.array();
+    }
+
+    /** The capacity that was asked for; the slab behind it may be larger. */
+    public int capacity() {
+        return capacity;
+    }
+
+    /** Returns the buffer to its pool. The buffer must not be used afterwards; closing again does nothing. */
+    @Override
+    public void close() {
+        if (lease.release()) {
+            lease.pool().recycle(buffer, lease.sizeClass());
+            if (cleanable != null) {
+                cleanable.clean();
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.banda.concurrent;
+
+import java.util.Locale;
+
+/**
+ * How transfer and segment tasks are run. Selected with {@code -Dbanda.threads=virtual|platform}.
+ * HTTP exchanges always run on platform threads, since the JDK's HTTP server blocks on client
+ * sockets while holding a monitor.
+ */
+public enum ExecutionMode {
+    /** One virtual thread per task; slow clients never wait for a free worker. */
+    VIRTUAL,
+    /** Bounded pools of named platform threads, sized by {@code banda.segment.threads} and {@code banda.transfer.threads}. */
+    PLATFORM;
+
+    public static ExecutionMode fromSystemProperties() {
+        String mode = System.getProperty("banda.threads", "virtual");
+        return valueOf(mode.trim().toUpperCase(Locale.ROOT));
+    }
+}
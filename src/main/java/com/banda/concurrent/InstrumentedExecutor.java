@@ -0,0 +1,108 @@
+package com.banda.concurrent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Named executor that counts queued, running and completed tasks so thread usage can be observed,
+ * and that can drain in-flight work on shutdown.
+ */
+public final class InstrumentedExecutor implements Executor {
+    private static final Logger log = LoggerFactory.getLogger(InstrumentedExecutor.class);
+
+    private final String name;
+    private final ExecutorService delegate;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder completed = new LongAdder();
+
+    private InstrumentedExecutor(String name, ExecutorService delegate) {
+        this.name = name;
+        this.delegate = delegate;
+    }
+
+    /**
+     * @param platformThreads pool size used in {@link ExecutionMode#PLATFORM}, ignored for virtual threads
+     */
+    public static InstrumentedExecutor create(String name, ExecutionMode mode, int platformThreads) {
+        ExecutorService delegate = switch (mode) {
+            case VIRTUAL -> Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+            case PLATFORM -> {
+                ThreadFactory factory = Thread.ofPlatform().name(name + "-", 0).factory();
+                yield new ThreadPoolExecutor(platformThreads, platformThreads, 0L, TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<>(), factory);
+            }
+        };
+        log.info("Executor {} running on {} threads", name, mode == ExecutionMode.VIRTUAL ? "virtual" : platformThreads + " platform");
+        return new InstrumentedExecutor(name, delegate);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        queued.incrementAndGet();
+        try {
+            delegate.execute(() -> {
+                queued.decrementAndGet();
+                active.incrementAndGet();
+                try {
+                    task.run();
+                } finally {
+                    active.decrementAndGet();
+                    completed.increment();
+                }
+            });
+        } catch (RuntimeException e) {
+            queued.decrementAndGet();
+            throw e;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** Tasks waiting for a thread; always 0 with virtual threads. */
+    public int queuedCount() {
+        return queued.get();
+    }
+
+    /** Tasks currently running, i.e. threads in use. */
+    public int activeCount() {
+        return active.get();
+    }
+
+    public long completedCount() {
+        return completed.sum();
+    }
+
+    /**
+     * Stops accepting tasks and waits for running and queued ones to finish.
+     *
+     * @return true if everything finished within the timeout
+     */
+    public boolean shutdownAndAwait(Duration timeout) {
+        delegate.shutdown();
+        try {
+            if (delegate.awaitTermination(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.warn("Executor {} still has {} running and {} queued tasks after {}, interrupting",
+                name, activeCount(), queuedCount(), timeout);
+        delegate.shutdownNow();
+        return false;
+    }
+}
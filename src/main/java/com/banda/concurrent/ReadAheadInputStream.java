@@ -0,0 +1,216 @@
+package com.banda.concurrent;
+
+import com.banda.buffers.BufferPool;
+import com.banda.buffers.PooledBuffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a stream on a task of its own into pooled buffers and hands them over through a bounded
+ * queue, so the source keeps being read while the consumer is busy. Once {@code depth} chunks are
+ * waiting the reader stops, and the source's own flow control (for a socket, the TCP window)
+ * holds back the sender.
+ * <p>
+ * Meant for a single consumer thread. {@link #close()} returns at once and does not close the
+ * source; the reader stops after the read it is in. A read still blocked {@link #ABANDON_TIMEOUT}
+ * later, e.g. on a peer that stopped sending, is interrupted, which for a socket channel closes
+ * the connection: long enough for the consumer to have sent its answer, short enough that
+ * stalled peers do not pile up reader threads.
+ */
+public final class ReadAheadInputStream extends InputStream {
+    private static final long OFFER_POLL_MILLIS = 100;
+    static final Duration ABANDON_TIMEOUT = Duration.ofSeconds(5);
+
+    private final InputStream source;
+    private final int chunkSize;
+    private final BlockingQueue<Chunk> chunks;
+    private volatile boolean closed;
+    private final Object readerLock = new Object();
+    private Thread reader; // set while the reader task runs, guarded by readerLock
+
+    private Chunk current;
+    private boolean eof;
+
+    /**
+     * @param executor runs the reader, one task for the life of the stream
+     * @param chunkSize most bytes per handed over buffer
+     * @param depth chunks read ahead at most
+     */
+    public ReadAheadInputStream(InputStream source, Executor executor, int chunkSize, int depth) {
+        this.source = source;
+        this.chunkSize = chunkSize;
+        this.chunks = new ArrayBlockingQueue<>(depth);
+        executor.execute(this::readAll);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (current == null || current.remaining() == 0) {
+            if (eof) {
+                return -1;
+            }
+            release();
+            current = take();
+            if (current.failure != null) {
+                eof = true;
+                throw new IOException(current.failure.getMessage(), current.failure);
+            }
+            if (current.buffer == null) {
+                eof = true;
+                return -1;
+            }
+        }
+        int n = Math.min(len, current.remaining());
+        System.arraycopy(current.buffer.array(), current.position, b, off, n);
+        current.position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : current.remaining();
+    }
+
+    /**
+     * Stops the reader and returns every buffer it filled. Does not wait for a read in progress:
+     * the reader hands back that buffer itself when the read ends.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        release();
+        drain();
+        boolean reading;
+        synchronized (readerLock) {
+            reading = reader != null;
+        }
+        if (reading) {
+            CompletableFuture.delayedExecutor(ABANDON_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)
+                    .execute(this::interruptReader);
+        }
+    }
+
+    private void interruptReader() {
+        synchronized (readerLock) {
+            if (reader != null) {
+                reader.interrupt();
+            }
+        }
+    }
+
+    private void readAll() {
+        synchronized (readerLock) {
+            reader = Thread.currentThread();
+        }
+        try {
+            while (!closed) {
+                PooledBuffer buffer = BufferPool.heap().acquire(chunkSize);
+                int n;
+                try {
+                    n = source.read(buffer.array(), 0, chunkSize);
+                } catch (IOException | RuntimeException e) {
+                    buffer.close();
+                    hand(new Chunk(null, 0, e));
+                    return;
+                }
+                if (n == -1) {
+                    buffer.close();
+                    hand(new Chunk(null, 0, null));
+                    return;
+                }
+                if (!hand(new Chunk(buffer, n, null))) {
+                    buffer.close();
+                }
+            }
+        } finally {
+            synchronized (readerLock) {
+                reader = null;
+            }
+            // An interrupt meant for this stream must not reach the next task of a pooled thread
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Queues a chunk, waiting for room unless the stream is closed meanwhile.
+     *
+     * @return false if the chunk was not queued
+     */
+    private boolean hand(Chunk chunk) {
+        try {
+            while (!closed) {
+                if (chunks.offer(chunk, OFFER_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (closed) {
+                        drain(); // close() may have emptied the queue just before this chunk went in
+                    }
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private Chunk take() throws InterruptedIOException {
+        try {
+            return chunks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the request body");
+        }
+    }
+
+    private void release() {
+        if (current != null && current.buffer != null) {
+            current.buffer.close();
+        }
+        current = null;
+    }
+
+    private void drain() {
+        Chunk chunk;
+        while ((chunk = chunks.poll()) != null) {
+            if (chunk.buffer != null) {
+                chunk.buffer.close();
+            }
+        }
+    }
+
+    private static final class Chunk {
+        private final PooledBuffer buffer; // null at the end of the stream
+        private final int length;
+        private final Exception failure;
+        private int position;
+
+        private Chunk(PooledBuffer buffer, int length, Exception failure) {
+            this.buffer = buffer;
+            this.length = length;
+            this.failure = failure;
+        }
+
+        private int remaining() {
+            return length - position;
+        }
+    }
+}
@@ -1,11 +1,20 @@
 package com.banda.controller;
 
+import com.banda.concurrent.ExecutionMode;
+import com.banda.concurrent.InstrumentedExecutor;
 import com.banda.httphandlers.CORSHandler;
 import com.banda.httphandlers.FileDownloadHandler;
+import com.banda.httphandlers.MetricsHandler;
+import com.banda.metrics.MetricsRegistry;
 import com.banda.parser.IntegratedFileParser;
 import com.banda.service.FileDownloadService;
 import com.banda.httphandlers.FileUploadHandler;
+import com.banda.service.BlobStore;
+import com.banda.service.ContentCache;
 import com.banda.service.Filesharer;
+import com.banda.service.MappedFiles;
+import com.banda.service.ShareRegistry;
+import com.banda.service.UploadAdmission;
 import com.sun.net.httpserver.HttpServer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,23 +22,41 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.List;
 
 public class BandaFileController {
     private final Filesharer filesharer;
     private final HttpServer httpServer;
     private final String uploadDir;
-    private final ExecutorService executorService;
+    private final InstrumentedExecutor httpExecutor;
+    private final InstrumentedExecutor segmentExecutor;
+    private final InstrumentedExecutor uploadExecutor;
+    private final UploadAdmission uploadAdmission;
+    private static final int DRAIN_SECONDS = 30;
     private static final Logger log = LoggerFactory.getLogger(BandaFileController.class);
 
     public BandaFileController(int port) throws IOException {
-        this.filesharer = new Filesharer();
+        ExecutionMode mode = ExecutionMode.fromSystemProperties();
+        // Exchanges and upload readers always run on platform threads: they block inside the HTTP server's
+        // synchronized body streams, which would pin a virtual thread's carrier for as long as a slow
+        // client takes to send or receive
+        this.httpExecutor = InstrumentedExecutor.create("banda-http", ExecutionMode.PLATFORM,
+                Integer.getInteger("banda.http.threads", 64));
+        this.segmentExecutor = InstrumentedExecutor.create("banda-segment", mode,
+                Integer.getInteger("banda.segment.threads", 16));
+        this.uploadExecutor = InstrumentedExecutor.create("banda-upload", ExecutionMode.PLATFORM,
+                Integer.getInteger("banda.upload.threads", 64));
+        this.filesharer = new Filesharer(Filesharer.Settings.fromSystemProperties(
+                Integer.getInteger("banda.transfer.port", Filesharer.DEFAULT_TRANSFER_PORT),
+                InstrumentedExecutor.create("banda-sender", mode, Integer.getInteger("banda.transfer.threads", 32))));
         this.httpServer = HttpServer.create(new InetSocketAddress(port), 0);
         this.uploadDir = System.getProperty("java.io.tmpdir") + File.separator + "banda-uploads";
-        this.executorService = Executors.newFixedThreadPool(10);
         setupUploadDirectory();
+        this.uploadAdmission = UploadAdmission.fromSystemProperties(Paths.get(uploadDir));
         setupRoutes();
+        registerMetrics(MetricsRegistry.getDefault());
     }
 
     private void setupUploadDirectory() {
@@ -42,24 +69,128 @@ public class BandaFileController {
 
     private void setupRoutes() {
         log.debug("Setting up routes for BandaFileController");
-        FileDownloadService downloadService = new FileDownloadService();
+        FileDownloadService downloadService = new FileDownloadService(filesharer.getTransferPort(), segmentExecutor);
         IntegratedFileParser IntegratedFileParser = new IntegratedFileParser();
 
         httpServer.createContext("/", new CORSHandler());
         httpServer.createContext("/download", new FileDownloadHandler(downloadService));
-        httpServer.createContext("/upload", new FileUploadHandler(filesharer, uploadDir, IntegratedFileParser));
+        httpServer.createContext("/upload", new FileUploadHandler(filesharer, uploadDir, IntegratedFileParser,
+                uploadAdmission, uploadExecutor));
+        httpServer.createContext("/metrics", new MetricsHandler(MetricsRegistry.getDefault()));
         log.debug("Routes set up successfully");
-        httpServer.setExecutor(executorService);
+        httpServer.setExecutor(httpExecutor);
+    }
+
+    /**
+     * Reports the executors, upload admission, shares, blob store and send engines, read from their own
+     * counters at scrape time.
+     */
+    private void registerMetrics(MetricsRegistry metrics) {
+        for (InstrumentedExecutor executor : List.of(httpExecutor, segmentExecutor, uploadExecutor,
+                filesharer.getSenderExecutor())) {
+            metrics.gauge("banda_executor_queued_tasks", "Tasks waiting for a thread", "executor", executor.getName(),
+                    executor::queuedCount);
+            metrics.gauge("banda_executor_active_tasks", "Tasks running", "executor", executor.getName(),
+                    executor::activeCount);
+            metrics.counter("banda_executor_completed_tasks_total", "Tasks finished", "executor", executor.getName(),
+                    executor::completedCount);
+        }
+
+        metrics.gauge("banda_uploads_active", "Uploads admitted and not yet finished", null, null,
+                uploadAdmission::activeCount);
+        metrics.gauge("banda_upload_reserved_bytes", "Bytes reserved by admitted uploads against the upload budget",
+                null, null, uploadAdmission::reservedBytes);
+        metrics.gauge("banda_upload_dir_usable_bytes", "Usable space in the upload directory, -1 if not checked",
+                null, null, uploadAdmission::usableBytes);
+
+        ShareRegistry shares = filesharer.getShareRegistry();
+        metrics.gauge("banda_shares_active", "Shares that can be downloaded", null, null, shares::size);
+        metrics.counter("banda_share_lookups_total", "Share code lookups", "result", "hit", shares::hitCount);
+        metrics.counter("banda_share_lookups_total", "Share code lookups", "result", "miss", shares::missCount);
+        for (ShareRegistry.EvictionReason reason : ShareRegistry.EvictionReason.values()) {
+            metrics.counter("banda_share_evictions_total", "Shares dropped, by reason", "reason", reason.label(),
+                    () -> shares.evictionCount(reason));
+        }
+
+        BlobStore blobStore = shares.getBlobStore();
+        metrics.gauge("banda_blobs_stored", "Distinct contents in the blob store", null, null, blobStore::blobCount);
+        metrics.counter("banda_blob_dedup_hits_total", "Uploads whose content was already stored", null, null,
+                blobStore::dedupHitCount);
+        metrics.counter("banda_blob_bytes_saved_total", "Disk space not taken by duplicate uploads", null, null,
+                blobStore::bytesSaved);
+
+        ContentCache cache = filesharer.getContentCache();
+        if (cache != null) {
+            metrics.gauge("banda_cache_used_bytes", "Bytes held by the content cache", null, null, cache::usedBytes);
+            metrics.gauge("banda_cache_entries", "Entries in the content cache", null, null, cache::entryCount);
+            metrics.counter("banda_cache_lookups_total", "Content cache lookups", "result", "hit", cache::hitCount);
+            metrics.counter("banda_cache_lookups_total", "Content cache lookups", "result", "miss", cache::missCount);
+            metrics.counter("banda_cache_evictions_total", "Entries dropped to stay under the cache size", null, null,
+                    cache::evictionCount);
+        }
+        MappedFiles mappedFiles = filesharer.getMappedFiles();
+        if (mappedFiles != null) {
+            metrics.gauge("banda_mapped_files", "Files mapped by the mmap send engine", null, null,
+                    mappedFiles::mappedCount);
+        }
     }
 
     public void start() {
+        this.filesharer.start();
         this.httpServer.start();
         log.info("Server started on port: {}", httpServer.getAddress().getPort());
     }
 
+    public int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    public InstrumentedExecutor getHttpExecutor() {
+        return httpExecutor;
+    }
+
+    public Filesharer getFilesharer() {
+        return filesharer;
+    }
+
+    /**
+     * Stops accepting connections, then waits for uploads, downloads and transfers in flight to drain.
+     */
     public void stop() {
-        this.httpServer.stop(0);
-        this.executorService.shutdown();
         log.info("Server stopping .........");
+        // HttpServer.stop(delay) closes the listening socket at once, but on JDK 21 it then sleeps out the
+        // full delay unless an exchange happens to end meanwhile. Run it on its own thread, drain on our own
+        // counters, and cut it short with stop(0). Relays in flight still need the sender side meanwhile.
+        Thread closer = Thread.ofPlatform().name("banda-http-stop")
+                .start(() -> this.httpServer.stop(DRAIN_SECONDS));
+        awaitIdle(httpExecutor, Duration.ofSeconds(DRAIN_SECONDS));
+        this.httpServer.stop(0);
+        try {
+            closer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            this.filesharer.close();
+        } catch (IOException e) {
+            log.error("Error closing transfer listener: {}", e.getMessage());
+        }
+        this.httpExecutor.shutdownAndAwait(Duration.ofSeconds(DRAIN_SECONDS));
+        this.segmentExecutor.shutdownAndAwait(Duration.ofSeconds(DRAIN_SECONDS));
+        this.uploadExecutor.shutdownAndAwait(Duration.ofSeconds(DRAIN_SECONDS));
+        log.info("Server stopped, {} requests and {} transfers completed",
+                httpExecutor.completedCount(), filesharer.getSenderExecutor().completedCount());
+    }
+
+    private static void awaitIdle(InstrumentedExecutor executor, Duration timeout) {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (executor.activeCount() + executor.queuedCount() > 0 && System.nanoTime() - deadline < 0) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
     }
 }
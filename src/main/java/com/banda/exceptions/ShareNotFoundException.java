@@ -0,0 +1,14 @@
+package com.banda.exceptions;
+
+
+import com.banda.annotations.ResponseStatus;
+
+/**
+ * Thrown when a download names a share code that is not (or no longer) offered—map this to HTTP 404.
+ */
+@ResponseStatus(code = 404, reason = "Share not found")
+public class ShareNotFoundException extends RuntimeException {
+    public ShareNotFoundException(String message) {
+        super(message);
+    }
+}
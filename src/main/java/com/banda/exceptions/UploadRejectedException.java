@@ -0,0 +1,24 @@
+package com.banda.exceptions;
+
+
+import com.banda.annotations.ResponseStatus;
+
+import java.time.Duration;
+
+/**
+ * Thrown when an upload is turned away because the server is at capacity—map this to HTTP 503
+ * with a {@code Retry-After} header.
+ */
+@ResponseStatus(code = 503, reason = "Upload capacity exhausted")
+public class UploadRejectedException extends RuntimeException {
+    private final Duration retryAfter;
+
+    public UploadRejectedException(String message, Duration retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,14 @@
+package com.banda.exceptions;
+
+
+import com.banda.annotations.ResponseStatus;
+
+/**
+ * Thrown when an upload declares more bytes than the server ever accepts at once—map this to HTTP 413.
+ */
+@ResponseStatus(code = 413, reason = "Upload too large")
+public class UploadTooLargeException extends RuntimeException {
+    public UploadTooLargeException(String message) {
+        super(message);
+    }
+}
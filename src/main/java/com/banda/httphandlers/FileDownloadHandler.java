@@ -1,6 +1,7 @@
 package com.banda.httphandlers;
 
 
+import com.banda.annotations.ResponseStatus;
 import com.banda.response.HttpStatus;
 import com.banda.response.ResponseHelper;
 import com.banda.service.FileDownloadService;
@@ -35,14 +36,20 @@ public class FileDownloadHandler implements HttpHandler {
         try {
 
             String path = exchange.getRequestURI().getPath();
-            String portParam = path.substring(path.lastIndexOf("/") + 1);
-            int port = Integer.parseInt(portParam);
-            log.info("Received download request for port: {}", port);
+            String codeParam = path.substring(path.lastIndexOf("/") + 1);
+            int code = Integer.parseInt(codeParam);
+            log.info("Received download request for share: {}", code);
 
-            downloadService.downloadAndStreamFile(exchange, port);
+            downloadService.downloadAndStreamFile(exchange, code);
         } catch (Exception e) {
             log.error("Error processing download request: {}", e.getMessage(), e);
-            responseHelper.sendErrorResponse(exchange, HttpStatus.INTERNAL_SERVER_ERROR.code(), HttpStatus.INTERNAL_SERVER_ERROR.reason());
+            ResponseStatus rs = e.getClass().getAnnotation(ResponseStatus.class);
+            if (rs != null) {
+                String message = e.getMessage() != null ? e.getMessage() : rs.reason();
+                responseHelper.sendErrorResponse(exchange, rs.code(), message);
+            } else {
+                responseHelper.sendErrorResponse(exchange, HttpStatus.INTERNAL_SERVER_ERROR.code(), HttpStatus.INTERNAL_SERVER_ERROR.reason());
+            }
         }
     }
 }
\ No newline at end of file
@@ -3,9 +3,18 @@ package com.banda.httphandlers;
 
 
 import com.banda.annotations.ResponseStatus;
+import com.banda.concurrent.ReadAheadInputStream;
+import com.banda.exceptions.UploadRejectedException;
+import com.banda.exceptions.UploadTooLargeException;
+import com.banda.metrics.Counter;
+import com.banda.metrics.Gauge;
+import com.banda.metrics.Histogram;
+import com.banda.metrics.MetricsRegistry;
 import com.banda.parser.IntegratedFileParser;
 import com.banda.response.HttpStatus;
+import com.banda.service.BlobStore;
 import com.banda.service.Filesharer;
+import com.banda.service.UploadAdmission;
 //import com.banda.parser.MultipartParser;
 import com.banda.parser.ParseResult;
 import com.banda.response.ResponseHelper;
@@ -13,22 +22,53 @@ import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 public class FileUploadHandler implements HttpHandler {
+    private static final int READ_AHEAD_CHUNK_SIZE = 64 * 1024;
     private final Filesharer filesharer;
     private final String uploadDir;
     private final ResponseHelper responseHelper;
     private static Logger log = LoggerFactory.getLogger(FileUploadHandler.class);
+    private static final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private static final Counter uploadBytes = metrics.counter("banda_upload_bytes_total",
+            "Request body bytes received by uploads");
+    private static final Histogram uploadSize = metrics.histogram("banda_upload_size_bytes",
+            "Request body size of successful uploads", Histogram.SIZE_BOUNDS, Histogram.UNSCALED);
+    private static final Histogram uploadDuration = metrics.histogram("banda_upload_duration_seconds",
+            "Time to receive, store and share a successful upload", Histogram.DURATION_BOUNDS, Histogram.NANOS);
+    private static final Histogram parseDuration = metrics.histogram("banda_parse_duration_seconds",
+            "Time to stream a multipart upload off the socket and parse it into files", Histogram.DURATION_BOUNDS, Histogram.NANOS);
+    private static final Gauge uploadBytesInFlight = metrics.gauge("banda_bytes_in_flight",
+            "Declared body size of uploads and downloads in progress", "direction", "upload");
     private final IntegratedFileParser fileParser;
-    public FileUploadHandler(Filesharer filesharer, String uploadDir, IntegratedFileParser fileParser) {
+    private final UploadAdmission admission;
+    private final Executor readerExecutor;
+    private final int readAheadChunks;
+
+    /**
+     * The request body is read ahead by a task on {@code readerExecutor}, up to
+     * {@code banda.upload.readahead} chunks of 64 KiB (16), while this handler parses it.
+     */
+    public FileUploadHandler(Filesharer filesharer, String uploadDir, IntegratedFileParser fileParser,
+                             UploadAdmission admission, Executor readerExecutor) {
         this.filesharer = filesharer;
         this.uploadDir = uploadDir;
         this.fileParser = fileParser;
+        this.admission = admission;
+        this.readerExecutor = readerExecutor;
+        this.readAheadChunks = Integer.getInteger("banda.upload.readahead", 16);
         this.responseHelper = new ResponseHelper();
     }
 
@@ -50,9 +90,33 @@ public class FileUploadHandler implements HttpHandler {
         }
         log.debug("Content-Type is valid, proceeding with file upload processing");
 
+        long declaredLength = parseContentLength(exchange);
+        UploadAdmission.Permit permit;
         try {
-            log.info("Processing file upload request");
-            processUpload(exchange);
+            permit = admission.admit(declaredLength);
+        } catch (UploadRejectedException e) {
+            // Refused before reading the body, so an overloaded server answers at once
+            log.warn("Refusing upload of {} bytes: {}", declaredLength, e.getMessage());
+            exchange.getResponseHeaders().set("Retry-After", Long.toString(e.getRetryAfter().toSeconds()));
+            responseHelper.sendErrorResponse(exchange, HttpStatus.SERVICE_UNAVAILABLE.code(), e.getMessage());
+            return;
+        } catch (UploadTooLargeException e) {
+            log.warn("Refusing upload: {}", e.getMessage());
+            responseHelper.sendErrorResponse(exchange, HttpStatus.CONTENT_TOO_LARGE.code(), e.getMessage());
+            return;
+        }
+
+        long bytesInFlight = Math.max(0, declaredLength);
+        uploadBytesInFlight.add(bytesInFlight);
+        // The permit is closed before the catch runs: answering an error can block until the client
+        // sends the rest of its body, and a stalled client must not keep holding an upload slot
+        try (permit) {
+            try {
+                log.info("Processing file upload request");
+                processUpload(exchange, permit);
+            } finally {
+                uploadBytesInFlight.add(-bytesInFlight);
+            }
         } catch (Exception e) {
             log.error("Error processing upload request: {}", e.getMessage(), e);
             // 1) Look for @ResponseStatus on the exception class
@@ -72,6 +136,21 @@ public class FileUploadHandler implements HttpHandler {
         }
     }
 
+    /**
+     * @return the Content-Length of the request, or -1 if it is missing, malformed or chunked
+     */
+    private static long parseContentLength(HttpExchange exchange) {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (contentLength == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     private boolean isValidContentType(HttpExchange exchange) {
         Headers requestHeaders = exchange.getRequestHeaders();
         String contentType = requestHeaders.getFirst("Content-Type");
@@ -79,7 +158,8 @@ public class FileUploadHandler implements HttpHandler {
                 contentType.startsWith("multipart/form-data");
     }
 
-    private void processUpload(HttpExchange exchange) throws IOException {
+    private void processUpload(HttpExchange exchange, UploadAdmission.Permit permit) throws IOException {
+        long start = System.nanoTime();
         String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
         String boundary = extractBoundary(contentType);
 //
@@ -91,27 +171,71 @@ public class FileUploadHandler implements HttpHandler {
 //        ParseResult result = parser.parse();
 
 
-        ParseResult result = fileParser.parseMultipartFile(exchange.getRequestBody(), boundary, uploadDir);
-
+        // Network reads run ahead of parsing, and the parser hands full buffers to the disk without waiting
+        ReadAheadInputStream readAhead = new ReadAheadInputStream(exchange.getRequestBody(), readerExecutor,
+                READ_AHEAD_CHUNK_SIZE, readAheadChunks);
+        CountingInputStream body = new CountingInputStream(permit.limit(readAhead));
+        List<ParseResult> results;
+        try {
+            results = fileParser.parseMultipartFiles(body, boundary, uploadDir);
+        } finally {
+            readAhead.close();
+            parseDuration.recordSince(start);
+            uploadBytes.add(body.getByteCount());
+        }
 
-        if (result == null) {
+        if (results == null || results.isEmpty()) {
             log.error("Failed to parse multipart data");
             responseHelper.sendErrorResponse(exchange, 400, "Bad Request Cannot parse multipart data");
             return;
         }
 
-        String savedFilePath = result.filePath().toString();
-        int port = filesharer.offerFile(savedFilePath);
-
-
-
-        // Start file server in background
-        log.info("Starting file server on port: {}", port);
-        new Thread(() -> filesharer.startFileServer(port)).start();
+        // Named after this upload's own file, the blob may be shared with uploads detected as another type
+        List<String> fileNames = results.stream().map(result -> result.filePath().getFileName().toString()).toList();
+        List<String> savedFilePaths = storeContent(results);
+        // The share is served by the shared transfer listener, no per-share server to start
+        int port;
+        try {
+            port = filesharer.offerFiles(savedFilePaths, fileNames);
+        } catch (RuntimeException e) {
+            releaseAll(savedFilePaths);
+            throw e;
+        }
+        log.info("Shared {} file(s) with code {} - {} bytes in {} ms", results.size(), port, body.getByteCount(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
 
-        String response = "{\"port\":" + port + "}";
+        String response = "{\"port\":" + port + ",\"files\":" + results.size() + "}";
         log.debug("Sending response: {}", response);
         responseHelper.sendJsonResponse(exchange, HttpStatus.OK.code(), response);
+        uploadSize.record(body.getByteCount());
+        uploadDuration.recordSince(start);
+    }
+
+    /**
+     * Moves the parsed files into the blob store; content that is already stored is not kept twice.
+     */
+    private List<String> storeContent(List<ParseResult> results) throws IOException {
+        BlobStore blobStore = filesharer.getShareRegistry().getBlobStore();
+        List<String> stored = new ArrayList<>();
+        try {
+            for (ParseResult result : results) {
+                stored.add(blobStore.store(result.filePath(), result.contentHash()).toString());
+            }
+            return stored;
+        } catch (IOException | RuntimeException e) {
+            releaseAll(stored);
+            for (ParseResult result : results.subList(stored.size(), results.size())) {
+                Files.deleteIfExists(result.filePath());
+            }
+            throw e;
+        }
+    }
+
+    private void releaseAll(List<String> storedPaths) {
+        BlobStore blobStore = filesharer.getShareRegistry().getBlobStore();
+        for (String path : storedPaths) {
+            blobStore.release(Paths.get(path));
+        }
     }
 
     private String extractBoundary(String contentType) {
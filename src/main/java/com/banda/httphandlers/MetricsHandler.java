@@ -0,0 +1,43 @@
+package com.banda.httphandlers;
+
+import com.banda.metrics.MetricsRegistry;
+import com.banda.response.HttpStatus;
+import com.banda.response.ResponseHelper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the registry in the Prometheus text format for scraping.
+ */
+public class MetricsHandler implements HttpHandler {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private final MetricsRegistry registry;
+    private final ResponseHelper responseHelper;
+    private static final Logger log = LoggerFactory.getLogger(MetricsHandler.class);
+
+    public MetricsHandler(MetricsRegistry registry) {
+        this.registry = registry;
+        this.responseHelper = new ResponseHelper();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+            log.warn("Unsupported HTTP method: {}", exchange.getRequestMethod());
+            responseHelper.sendErrorResponse(exchange, HttpStatus.METHOD_NOT_ALLOWED.code(), HttpStatus.METHOD_NOT_ALLOWED.reason());
+            return;
+        }
+        byte[] body = registry.scrape().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", CONTENT_TYPE);
+        exchange.sendResponseHeaders(HttpStatus.OK.code(), body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.banda.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic count. Backed by a {@link LongAdder}, so concurrent increments on hot paths do not
+ * contend on a single cache line.
+ */
+public final class Counter implements MetricsRegistry.Sample {
+    private final LongAdder count = new LongAdder();
+
+    Counter() {
+    }
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(long amount) {
+        count.add(amount);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    @Override
+    public void write(String name, String labels, StringBuilder out) {
+        MetricsRegistry.writeSample(out, name, labels, count.sum());
+    }
+}
@@ -0,0 +1,36 @@
+package com.banda.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Value that goes up and down, such as connections open or bytes in flight. Values read from an
+ * existing component are registered as callbacks instead, see
+ * {@link MetricsRegistry#gauge(String, String, String, String, java.util.function.LongSupplier)}.
+ */
+public final class Gauge implements MetricsRegistry.Sample {
+    private final LongAdder value = new LongAdder();
+
+    Gauge() {
+    }
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void decrement() {
+        value.decrement();
+    }
+
+    public void add(long amount) {
+        value.add(amount);
+    }
+
+    public long value() {
+        return value.sum();
+    }
+
+    @Override
+    public void write(String name, String labels, StringBuilder out) {
+        MetricsRegistry.writeSample(out, name, labels, value.sum());
+    }
+}
@@ -0,0 +1,85 @@
+package com.banda.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution over fixed bucket bounds, recorded as whole numbers (nanoseconds, bytes) and
+ * exported in the base unit Prometheus expects. Recording is a short scan over the bounds and two
+ * {@link LongAdder} increments, with no allocation and no lock.
+ */
+public final class Histogram implements MetricsRegistry.Sample {
+    private static final long MICROS = 1_000L;
+    private static final long MILLIS = 1_000_000L;
+    private static final long SECONDS = 1_000_000_000L;
+    private static final long KIB = 1024L;
+    private static final long MIB = 1024L * KIB;
+
+    /** Latency bounds in nanoseconds, from 10 µs to 5 minutes. */
+    public static final long[] DURATION_BOUNDS = {
+            10 * MICROS, 50 * MICROS, 250 * MICROS, MILLIS, 5 * MILLIS, 10 * MILLIS, 25 * MILLIS, 50 * MILLIS, 100 * MILLIS,
+            250 * MILLIS, 500 * MILLIS, SECONDS, 2 * SECONDS + SECONDS / 2, 5 * SECONDS, 10 * SECONDS,
+            30 * SECONDS, 60 * SECONDS, 300 * SECONDS};
+
+    /** Size bounds in bytes, from 1 KiB to 4 GiB. */
+    public static final long[] SIZE_BOUNDS = {
+            KIB, 16 * KIB, 64 * KIB, 256 * KIB, MIB, 4 * MIB, 16 * MIB, 64 * MIB, 256 * MIB, 1024 * MIB, 4096 * MIB};
+
+    /** Recorded nanoseconds per exported second. */
+    public static final double NANOS = 1e9;
+    /** Values exported as recorded. */
+    public static final double UNSCALED = 1;
+
+    private final long[] bounds;
+    private final double unitsPerBase;
+    private final LongAdder[] buckets; // one per bound plus +Inf, not cumulative
+    private final LongAdder sum = new LongAdder();
+
+    Histogram(long[] bounds, double unitsPerBase) {
+        this.bounds = bounds.clone();
+        this.unitsPerBase = unitsPerBase;
+        this.buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long value) {
+        int bucket = 0;
+        while (bucket < bounds.length && value > bounds[bucket]) {
+            bucket++;
+        }
+        buckets[bucket].increment();
+        sum.add(value);
+    }
+
+    /** Records the time elapsed since a {@link System#nanoTime()} reading. */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long count() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    @Override
+    public void write(String name, String labels, StringBuilder out) {
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            cumulative += buckets[i].sum();
+            String le = i < bounds.length ? MetricsRegistry.formatValue(bounds[i] / unitsPerBase) : "+Inf";
+            MetricsRegistry.writeSample(out, name + "_bucket", prefix + "le=\"" + le + "\"", cumulative);
+        }
+        out.append(name).append("_sum");
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(MetricsRegistry.formatValue(sum.sum() / unitsPerBase)).append('\n');
+        // The count must equal the +Inf bucket even while values are being recorded
+        MetricsRegistry.writeSample(out, name + "_count", labels, cumulative);
+    }
+}
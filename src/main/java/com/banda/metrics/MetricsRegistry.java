@@ -0,0 +1,143 @@
+package com.banda.metrics;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Named counters, gauges and histograms, written out in the Prometheus text format (0.0.4).
+ * <p>
+ * Metrics are looked up by name and an optional single label, and created on first use, so
+ * classes keep theirs in static fields next to their logger. Registering a callback under a name
+ * that is already taken replaces the earlier callback: when several servers run in one JVM
+ * (benchmarks, load tests) the last one started is reported.
+ */
+public final class MetricsRegistry {
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    /** The registry served on {@code /metrics}. */
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    public Counter counter(String name, String help) {
+        return counter(name, help, null, null);
+    }
+
+    /**
+     * @param label name of the label, or null for none
+     */
+    public Counter counter(String name, String help, String label, String value) {
+        return child(name, help, Type.COUNTER, label, value, Counter::new, Counter.class);
+    }
+
+    /** Reports a count kept by a component, read at scrape time. */
+    public void counter(String name, String help, String label, String value, LongSupplier count) {
+        register(name, help, Type.COUNTER, label, value, callback(count));
+    }
+
+    public Gauge gauge(String name, String help) {
+        return gauge(name, help, null, null);
+    }
+
+    public Gauge gauge(String name, String help, String label, String value) {
+        return child(name, help, Type.GAUGE, label, value, Gauge::new, Gauge.class);
+    }
+
+    /** Reports a value kept by a component, read at scrape time. */
+    public void gauge(String name, String help, String label, String value, LongSupplier reading) {
+        register(name, help, Type.GAUGE, label, value, callback(reading));
+    }
+
+    /**
+     * @param bounds upper bucket bounds in the recorded unit, e.g. {@link Histogram#DURATION_BOUNDS}
+     * @param unitsPerBase recorded units per exported unit, e.g. {@link Histogram#NANOS} per second
+     */
+    public Histogram histogram(String name, String help, long[] bounds, double unitsPerBase) {
+        return child(name, help, Type.HISTOGRAM, null, null, () -> new Histogram(bounds, unitsPerBase), Histogram.class);
+    }
+
+    /** Every metric in the Prometheus text exposition format. */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type.text).append('\n');
+            for (Map.Entry<String, Sample> child : family.children.entrySet()) {
+                child.getValue().write(name, child.getKey(), out);
+            }
+        }
+        return out.toString();
+    }
+
+    private <T extends Sample> T child(String name, String help, Type type, String label, String value,
+                                       Supplier<T> factory, Class<T> kind) {
+        Sample sample = family(name, help, type).children.computeIfAbsent(labels(label, value), key -> factory.get());
+        if (!kind.isInstance(sample)) {
+            throw new IllegalArgumentException("Metric " + name + " is reported by a callback");
+        }
+        return kind.cast(sample);
+    }
+
+    private void register(String name, String help, Type type, String label, String value, Sample sample) {
+        family(name, help, type).children.put(labels(label, value), sample);
+    }
+
+    private Family family(String name, String help, Type type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(type, help));
+        if (family.type != type) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as a " + family.type.text);
+        }
+        return family;
+    }
+
+    private static Sample callback(LongSupplier reading) {
+        return (name, labels, out) -> writeSample(out, name, labels, reading.getAsLong());
+    }
+
+    private static String labels(String label, String value) {
+        if (label == null) {
+            return "";
+        }
+        return label + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+
+    static void writeSample(StringBuilder out, String name, String labels, long value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    static String formatValue(double value) {
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+
+    /** One line (or, for a histogram, one group of lines) of a metric family. */
+    interface Sample {
+        void write(String name, String labels, StringBuilder out);
+    }
+
+    private enum Type {
+        COUNTER("counter"), GAUGE("gauge"), HISTOGRAM("histogram");
+
+        private final String text;
+
+        Type(String text) {
+            this.text = text;
+        }
+    }
+
+    private record Family(Type type, String help, Map<String, Sample> children) {
+        private Family(Type type, String help) {
+            this(type, help, new ConcurrentSkipListMap<>());
+        }
+    }
+}
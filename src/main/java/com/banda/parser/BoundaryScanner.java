@@ -0,0 +1,73 @@
+package com.banda.parser;
+
+/**
+ * Boyer-Moore-Horspool search for a fixed byte pattern over whole chunks.
+ * <p>
+ * The scanner is stateless across calls; callers carry partial matches over chunk
+ * edges by keeping the bytes reported by {@link #partialMatchLength} and prepending
+ * them to the next chunk.
+ */
+final class BoundaryScanner {
+    private final byte[] pattern;
+    private final int[] shift = new int[256];
+
+    BoundaryScanner(byte[] pattern) {
+        if (pattern.length == 0) {
+            throw new IllegalArgumentException("Pattern must not be empty");
+        }
+        this.pattern = pattern.clone();
+        int last = pattern.length - 1;
+        for (int i = 0; i < shift.length; i++) {
+            shift[i] = pattern.length;
+        }
+        for (int i = 0; i < last; i++) {
+            shift[pattern[i] & 0xFF] = last - i;
+        }
+    }
+
+    int length() {
+        return pattern.length;
+    }
+
+    /**
+     * Finds the first occurrence of the pattern in {@code data[from, to)}.
+     *
+     * @return the index of the first pattern byte, or -1 if the pattern is not fully contained
+     */
+    int indexOf(byte[] data, int from, int to) {
+        int last = pattern.length - 1;
+        byte lastByte = pattern[last];
+        int i = from;
+        while (i + last < to) {
+            byte b = data[i + last];
+            if (b == lastByte && matches(data, i, last)) {
+                return i;
+            }
+            i += shift[b & 0xFF];
+        }
+        return -1;
+    }
+
+    /**
+     * Length of the longest suffix of {@code data[from, to)} that is a proper prefix of the pattern.
+     * Those bytes may still turn into a match once the next chunk arrives, so they must be held back.
+     */
+    int partialMatchLength(byte[] data, int from, int to) {
+        int max = Math.min(pattern.length - 1, to - from);
+        for (int len = max; len > 0; len--) {
+            if (data[to - len] == pattern[0] && matches(data, to - len, len)) {
+                return len;
+            }
+        }
+        return 0;
+    }
+
+    private boolean matches(byte[] data, int start, int len) {
+        for (int j = 0; j < len; j++) {
+            if (data[start + j] != pattern[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,244 @@
+package com.banda.parser;
+
+import com.banda.buffers.BufferPool;
+import com.banda.buffers.PooledBuffer;
+import com.banda.exceptions.BadRequestException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Collects content ranges from the parser in a direct buffer and writes them to disk in bulk.
+ * The size limit is enforced on an in-memory counter instead of asking the file system,
+ * and the SHA-256 of the content is computed on the same pass.
+ * <p>
+ * The file is only created at the first flush, once the {@link FileNamer} has seen the first
+ * buffer of content, so it can be named after what it contains without a later rename.
+ * <p>
+ * Full buffers are written with {@link AsynchronousFileChannel} while the parser fills the next
+ * one, so a slow disk does not stall reading the request until {@code maxPendingWrites} buffers
+ * are waiting on it. Write buffers are borrowed from the direct {@link BufferPool} and returned
+ * once written, or when the sink is discarded.
+ */
+final class ContentSink implements Closeable {
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024; // 64KB per write syscall
+
+    /**
+     * Chooses where the content goes from its first bytes.
+     */
+    interface FileNamer {
+        Path name(byte[] prefix, int length);
+    }
+
+    private final FileNamer namer;
+    private final long maxSize;
+    private final MessageDigest digest;
+    private final int maxPendingWrites;
+    private final Semaphore writeSlots;
+    private final AtomicReference<Throwable> writeFailure = new AtomicReference<>();
+    private PooledBuffer pooledBuffer;
+    private ByteBuffer buffer;
+    private String contentHash;
+    private AsynchronousFileChannel channel;
+    private Path file;
+    private long written;
+    private long flushed;
+    private boolean closed;
+
+    /**
+     * @param prefixLength bytes the namer wants to see; the first flush waits for that many
+     * @param maxPendingWrites full buffers that may wait for the disk before {@link #write} blocks
+     */
+    ContentSink(FileNamer namer, int prefixLength, long maxSize, int maxPendingWrites) {
+        this.namer = namer;
+        this.maxSize = maxSize;
+        this.maxPendingWrites = maxPendingWrites;
+        this.writeSlots = new Semaphore(maxPendingWrites);
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required of every JVM", e);
+        }
+        this.pooledBuffer = BufferPool.direct().acquire(Math.max(WRITE_BUFFER_SIZE, prefixLength));
+        this.buffer = pooledBuffer.buffer();
+    }
+
+    void write(byte[] data, int offset, int length) throws IOException {
+        written += length;
+        if (written > maxSize) {
+            throw new BadRequestException("Content exceeds maximum size limit");
+        }
+        digest.update(data, offset, length);
+        while (length > 0) {
+            int n = Math.min(length, buffer.remaining());
+            buffer.put(data, offset, n);
+            offset += n;
+            length -= n;
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+        }
+    }
+
+    long size() {
+        return written;
+    }
+
+    /** Lowercase hex SHA-256 of everything written, available once the sink is closed. */
+    String contentHash() {
+        return contentHash;
+    }
+
+    /** The file written to, or null while nothing has been flushed yet. */
+    Path file() {
+        return file;
+    }
+
+    /**
+     * Hands the buffer to the disk and continues in a fresh one; blocks while too many writes are pending.
+     */
+    private void flush() throws IOException {
+        if (channel == null) {
+            open();
+        }
+        checkWrites();
+        buffer.flip();
+        if (!buffer.hasRemaining()) {
+            buffer.clear();
+            return;
+        }
+        try {
+            writeSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the disk");
+        }
+        PendingWrite write = new PendingWrite(pooledBuffer, flushed);
+        flushed += buffer.remaining();
+        try {
+            channel.write(buffer, write.position, write, write);
+        } catch (RuntimeException e) {
+            writeSlots.release();
+            throw e;
+        }
+        pooledBuffer = BufferPool.direct().acquire(WRITE_BUFFER_SIZE);
+        buffer = pooledBuffer.buffer();
+    }
+
+    private void open() throws IOException {
+        int length = buffer.position();
+        try (PooledBuffer prefix = BufferPool.heap().acquire(length)) {
+            buffer.get(0, prefix.array(), 0, length);
+            file = namer.name(prefix.array(), length);
+        }
+        channel = AsynchronousFileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+    }
+
+    /** Waits until every pending write has completed. */
+    private void awaitWrites() throws InterruptedIOException {
+        try {
+            writeSlots.acquire(maxPendingWrites);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the disk");
+        }
+        writeSlots.release(maxPendingWrites);
+    }
+
+    /** Reports the first write that failed, on the parser's thread. */
+    private void checkWrites() throws IOException {
+        Throwable failure = writeFailure.get();
+        if (failure != null) {
+            throw failure instanceof IOException io ? new IOException(io.getMessage(), io)
+                    : new IOException("Writing " + file + " failed", failure);
+        }
+    }
+
+    /**
+     * Flushes what is left and closes the file, creating it if the content was shorter than the buffer.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        contentHash = HexFormat.of().formatHex(digest.digest());
+        try {
+            flush();
+            awaitWrites();
+            checkWrites();
+        } finally {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } finally {
+                pooledBuffer.close();
+            }
+        }
+    }
+
+    /**
+     * Drops the content: nothing more is written and the file, if created, is deleted.
+     */
+    void discard() throws IOException {
+        closed = true;
+        pooledBuffer.close();
+        if (channel != null) {
+            // Pending writes still use their buffers, let them finish before closing under them
+            writeSlots.acquireUninterruptibly(maxPendingWrites);
+            channel.close();
+        }
+        if (file != null) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * One buffer on its way to the disk; writes the rest again if the file system took only part of it.
+     */
+    private final class PendingWrite implements CompletionHandler<Integer, PendingWrite> {
+        private final PooledBuffer pooled;
+        private long position;
+
+        private PendingWrite(PooledBuffer pooled, long position) {
+            this.pooled = pooled;
+            this.position = position;
+        }
+
+        @Override
+        public void completed(Integer count, PendingWrite write) {
+            position += count;
+            ByteBuffer data = pooled.buffer();
+            if (data.hasRemaining()) {
+                channel.write(data, position, this, this);
+                return;
+            }
+            done();
+        }
+
+        @Override
+        public void failed(Throwable exc, PendingWrite write) {
+            writeFailure.compareAndSet(null, exc);
+            done();
+        }
+
+        private void done() {
+            pooled.close();
+            writeSlots.release();
+        }
+    }
+}
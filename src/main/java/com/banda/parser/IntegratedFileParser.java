@@ -1,6 +1,8 @@
 package com.banda.parser;
 
 
+import com.banda.buffers.BufferPool;
+import com.banda.buffers.PooledBuffer;
 import com.banda.exceptions.BadRequestException;
 import com.banda.exceptions.ParsingException;
 import com.banda.utils.FileExtensionHelper;
@@ -12,6 +14,8 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.ThreadLocalRandom;
@@ -21,6 +25,7 @@ public class IntegratedFileParser {
     private static final int MAX_HEADER_SIZE = 16384; // 16KB limit
     private static final String FILENAME_KEY = "filename=\"";
     private static final int MAX_FILENAME_SIZE = 100 * 1024 * 1024; // 100 MB , Adjust as needed for your system
+    private static final int MAX_PENDING_WRITES = 4; // full buffers per upload waiting for the disk
     private static final  Logger log = LoggerFactory.getLogger(IntegratedFileParser.class);
 
 
@@ -28,108 +33,159 @@ public class IntegratedFileParser {
     private enum ParseState {
         READING_HEADERS,
         READING_CONTENT,
-        FOUND_BOUNDARY,
         DONE
     }
 
+    /**
+     * Parses a single-file upload. Kept for callers that only expect one part;
+     * additional file parts are still written to disk and returned by {@link #parseMultipartFiles}.
+     */
     public ParseResult parseMultipartFile(InputStream inputStream, String boundary,String uploadDir)
             throws IOException, ParsingException {
-        log.debug("Starting multipart file parsing with boundary: ");
+        return parseMultipartFiles(inputStream, boundary, uploadDir).get(0);
+    }
+
+    /**
+     * Streams every part of a multipart body in a single pass, writing each file part to
+     * {@code uploadDir}. Parts without a filename (plain form fields) are skipped.
+     *
+     * @return the stored files in the order they appeared in the request, never empty
+     * @throws BadRequestException if the request carries no file part
+     */
+    public List<ParseResult> parseMultipartFiles(InputStream inputStream, String boundary, String uploadDir)
+            throws IOException, ParsingException {
+        log.debug("Starting multipart file parsing with boundary: {}", boundary);
         Path uploadPath = Paths.get(uploadDir);
         ChunkedMultipartParser parser = new ChunkedMultipartParser(boundary);
         return parser.parse(inputStream, uploadPath);
     }
 
     private static class ChunkedMultipartParser {
-        private final byte[] boundaryPattern;
-        private final byte[] endBoundaryPattern;
-        private final CircularBuffer patternBuffer;
+        private static final byte[] HEADER_END_MARKER = "\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        // Bytes after a delimiter that tell the close delimiter ("--") from the next part (CRLF)
+        private static final int DELIMITER_SUFFIX_LENGTH = 2;
+        private final BoundaryScanner boundaryScanner;
+        private final BoundaryScanner headerEndScanner;
+        // Chunk plus room for the bytes held back from the previous read, borrowed for one request
+        private final PooledBuffer windowBuffer;
+        private final byte[] window;
+        private final int windowLength;
+        private Path uploadPath;
 
         private ParseState state = ParseState.READING_HEADERS;
-        private ByteArrayOutputStream headerBuffer = new ByteArrayOutputStream();
-        private Path tempContentFile;
-        private FileOutputStream contentOutput;
+        private final ByteArrayOutputStream headerBuffer = new ByteArrayOutputStream();
+        private final List<ParseResult> results = new ArrayList<>();
 
+        // Current part; contentSink is null while skipping a part that carries no file
+        private ContentSink contentSink;
         private String filename;
         private static final Logger log = LoggerFactory.getLogger(ChunkedMultipartParser.class);
 
 
         public ChunkedMultipartParser(String boundary) {
-            // Patterns to detect
-            this.boundaryPattern = ("\r\n--" + boundary).getBytes(StandardCharsets.UTF_8);
-            this.endBoundaryPattern = ("\r\n--" + boundary + "--").getBytes(StandardCharsets.UTF_8);
-            // Buffer to handle patterns spanning chunks
-            int maxPatternLength = Math.max(boundaryPattern.length, endBoundaryPattern.length);
-            this.patternBuffer = new CircularBuffer(maxPatternLength * 2);
+            // Pattern to detect; the end boundary is the same delimiter followed by "--"
+            this.boundaryScanner = new BoundaryScanner(("\r\n--" + boundary).getBytes(StandardCharsets.UTF_8));
+            this.headerEndScanner = new BoundaryScanner(HEADER_END_MARKER);
+            int maxPatternLength = Math.max(boundaryScanner.length(), headerEndScanner.length());
+            this.windowLength = CHUNK_SIZE + maxPatternLength + DELIMITER_SUFFIX_LENGTH;
+            this.windowBuffer = BufferPool.heap().acquire(windowLength);
+            this.window = windowBuffer.array();
         }
 
-        public ParseResult parse(InputStream inputStream,Path uploadPath) throws IOException, ParsingException {
+        public List<ParseResult> parse(InputStream inputStream, Path uploadPath) throws IOException, ParsingException {
+            this.uploadPath = uploadPath;
+            boolean completed = false;
             try {
-                // Create temporary file for content
-                log.debug("Creating temporary file for content in upload directory via thread {}", Thread.currentThread().getName());
-                String tmpName = "upload_" + UUID.randomUUID() + ".tmp";
-                tempContentFile = uploadPath.resolve(tmpName);
-                Files.createFile(tempContentFile);               // create the empty file
-                contentOutput = new FileOutputStream(tempContentFile.toFile());
-                log.debug("Temporary file created via thread {}", Thread.currentThread().getName());
-
-                byte[] chunk = new byte[CHUNK_SIZE];
+                int carried = 0;
                 int bytesRead;
-                log.debug("Starting to read input stream in chunks via thread {}", Thread.currentThread().getName());
-                while ((bytesRead = inputStream.read(chunk)) != -1 && state != ParseState.DONE) {
-                    processChunk(chunk, bytesRead);
+                while ((bytesRead = inputStream.read(window, carried, windowLength - carried)) != -1) {
+                    if (state == ParseState.DONE) {
+                        continue; // drain the epilogue of the request body
+                    }
+                    int available = carried + bytesRead;
+                    int consumed = processChunk(available);
+                    carried = available - consumed;
+                    System.arraycopy(window, consumed, window, 0, carried);
                 }
 
-                if (state != ParseState.FOUND_BOUNDARY && state != ParseState.DONE) {
+                if (state == ParseState.READING_CONTENT && boundaryScanner.indexOf(window, 0, carried) == 0) {
+                    // Body ended right after a delimiter with no "--" or CRLF, accept it as the end
+                    finishPart();
+                    state = ParseState.DONE;
+                }
+                if (state != ParseState.DONE) {
                     throw new ParsingException("Incomplete multipart data - no end boundary found");
                 }
-                log.debug("Finished reading input stream in chunks via thread {}", Thread.currentThread().getName());
-                return buildResult();
+                if (results.isEmpty()) {
+                    throw new BadRequestException("No filename found in headers");
+                }
+                log.debug("Finished reading {} file part(s)", results.size());
+                completed = true;
+                return results;
 
             } catch (IOException e) {
                 log.error("Error reading input stream: {}", e.getMessage());
                 throw new ParsingException("Error reading input stream", e);
+            } finally {
+                try {
+                    if (!completed) {
+                        discardFiles();
+                    }
+                } finally {
+                    windowBuffer.close();
+                }
             }
         }
 
-        //read a chunk then process it
-        private void processChunk(byte[] chunk, int bytesRead) throws IOException, ParsingException {
-            log.debug("Processing chunk via thread {}", Thread.currentThread().getName());
-            for (int i = 0; i < bytesRead; i++) {
-                byte currentByte = chunk[i];
-                patternBuffer.add(currentByte);
-
+        /**
+         * Scans {@code window[0, available)} and returns how many bytes were consumed.
+         * Unconsumed bytes are a possible partial match, or a delimiter still waiting for the
+         * bytes that follow it, and are carried into the next read.
+         */
+        private int processChunk(int available) throws IOException, ParsingException {
+            int pos = 0;
+            while (pos < available) {
                 switch (state) {
                     case READING_HEADERS:
-                        processHeaderByte(currentByte);
+                        int headerEnd = headerEndScanner.indexOf(window, pos, available);
+                        if (headerEnd == -1) {
+                            int keep = headerEndScanner.partialMatchLength(window, pos, available);
+                            processHeaderBytes(pos, available - keep - pos);
+                            return available - keep;
+                        }
+                        processHeaderBytes(pos, headerEnd - pos);
+                        finishHeaders();
+                        pos = headerEnd + headerEndScanner.length();
                         break;
 
                     case READING_CONTENT:
-                        processContentByte(currentByte);
+                        int boundaryStart = boundaryScanner.indexOf(window, pos, available);
+                        if (boundaryStart == -1) {
+                            int keep = boundaryScanner.partialMatchLength(window, pos, available);
+                            processContentBytes(pos, available - keep - pos);
+                            return available - keep;
+                        }
+                        processContentBytes(pos, boundaryStart - pos);
+                        int suffixStart = boundaryStart + boundaryScanner.length();
+                        if (available - suffixStart < DELIMITER_SUFFIX_LENGTH) {
+                            // Hold the delimiter back until we can see what follows it
+                            return boundaryStart;
+                        }
+                        finishPart();
+                        boolean closeDelimiter = window[suffixStart] == '-' && window[suffixStart + 1] == '-';
+                        state = closeDelimiter ? ParseState.DONE : ParseState.READING_HEADERS;
+                        pos = suffixStart + DELIMITER_SUFFIX_LENGTH;
                         break;
 
-                    case FOUND_BOUNDARY:
                     case DONE:
-                        return;
+                        return available;
                 }
             }
+            return pos;
         }
 
-        private void processHeaderByte(byte currentByte) throws IOException, ParsingException {
-            log.debug("Processing headers via thread {}", Thread.currentThread().getName());
-            headerBuffer.write(currentByte);
-
-            // Check for end of headers
-            if (patternBuffer.containsPattern("\r\n\r\n".getBytes(StandardCharsets.UTF_8))) {
-                // Parse headers
-                String headerText = headerBuffer.toString(StandardCharsets.ISO_8859_1);
-                parseHeaders(headerText);
-
-                // Switch to content reading
-                state = ParseState.READING_CONTENT;
-                headerBuffer = null; // Free memory
-                return;
-            }
+        private void processHeaderBytes(int offset, int length) throws ParsingException {
+            headerBuffer.write(window, offset, length);
 
             // Security check
             if (headerBuffer.size() > MAX_HEADER_SIZE) {
@@ -137,37 +193,39 @@ public class IntegratedFileParser {
             }
         }
 
-        private void processContentByte(byte currentByte) throws IOException {
-            log.debug("Processing content via thread {}", Thread.currentThread().getName());
-            // Check for boundary patterns before writing
-            if (patternBuffer.containsPattern(endBoundaryPattern)) {
-                state = ParseState.DONE;
-                removeTrailingBoundaryFromContent();
-                return;
-            } else if (patternBuffer.containsPattern(boundaryPattern)) {
-                state = ParseState.FOUND_BOUNDARY;
-                removeTrailingBoundaryFromContent();
-                return;
+        private void finishHeaders() throws IOException, ParsingException {
+            String headerText = headerBuffer.toString(StandardCharsets.ISO_8859_1);
+            headerBuffer.reset();
+            this.filename = extractFilename(headerText).orElse(null);
+
+            if (filename != null) {
+                // The sink creates the file at its first flush, named after what the first bytes turn out to be
+                String baseName = "upload_" + UUID.randomUUID();
+                String declaredType = extractContentType(headerText).orElse(null);
+                String partFilename = filename;
+                contentSink = new ContentSink(
+                        (prefix, length) -> uploadPath.resolve(baseName
+                                + FileExtensionHelper.detectExtension(prefix, length, declaredType, partFilename)),
+                        FileExtensionHelper.DETECTION_PREFIX_LENGTH, MAX_FILENAME_SIZE, MAX_PENDING_WRITES);
+                log.debug("Receiving part {}", filename);
+            } else {
+                log.debug("Skipping multipart part without a filename");
             }
 
-            // Safe to write this byte to content or temporary file
-            contentOutput.write(currentByte);
-            // Security check for content size
-            if (tempContentFile.toFile().length() > MAX_FILENAME_SIZE) {
-                throw new BadRequestException("Content exceeds maximum size limit");
-            }
+            // Switch to content reading
+            state = ParseState.READING_CONTENT;
         }
 
-        private void parseHeaders(String headerText) throws ParsingException {
-            log.debug("Parsing headers via thread {}", Thread.currentThread().getName());
-            // Extract filename
-            this.filename = extractFilename(headerText)
-                    .orElseThrow(() -> new BadRequestException("No filename found in headers"));
-
+        private void processContentBytes(int offset, int length) throws IOException {
+            if (length == 0 || contentSink == null) {
+                return;
+            }
+            // Boundary bytes never reach this point, the scanner holds them back.
+            // The sink enforces the content size limit on its own byte counter.
+            contentSink.write(window, offset, length);
         }
 
         private Optional<String> extractFilename(String headerText) {
-            log.debug("Extracting filename from headers via thread {}", Thread.currentThread().getName());
             int filenameStart = headerText.indexOf(FILENAME_KEY);
             if (filenameStart == -1) return Optional.empty();
 
@@ -192,62 +250,23 @@ public class IntegratedFileParser {
             return Optional.of(headerText.substring(start, end).trim());
         }
 
-        private void removeTrailingBoundaryFromContent() throws IOException {
-            // Remove the boundary bytes that were written to content
-            // This requires truncating the temp file
-            contentOutput.close();
-
-            long fileSize = tempContentFile.toFile().length();
-            long newSize = fileSize - boundaryPattern.length;
-
-            if (newSize >= 0) {
-                try (RandomAccessFile raf = new RandomAccessFile(tempContentFile.toFile(), "rw")) {
-                    raf.setLength(newSize);
-                }
+        private void finishPart() throws IOException {
+            if (contentSink == null) {
+                return;
             }
+            contentSink.close();
+            results.add(new ParseResult(filename, contentSink.file(), contentSink.contentHash()));
+            log.debug("Stored part {} as {} ({} bytes)", filename, contentSink.file(), contentSink.size());
+            contentSink = null;
         }
 
-        private ParseResult buildResult() throws IOException {
-            contentOutput.close();
-            log.debug("Building parse result via thread {}", Thread.currentThread().getName());
-            //rename with detected extension
-            log.debug("applying appropiate extension to file via thread {}", Thread.currentThread().getName());
-            Path finalFile = FileExtensionHelper.renameWithDetectedExtension(tempContentFile);
-            return new ParseResult(filename, finalFile);
-        }
-
-
-    }
-
-
-    private static class CircularBuffer {
-        private final byte[] buffer;
-        private int head = 0;
-        private int size = 0;
-
-        public CircularBuffer(int capacity) {
-            this.buffer = new byte[capacity];
-        }
-
-        public void add(byte b) {
-            buffer[(head + size) % buffer.length] = b;
-            if (size < buffer.length) {
-                size++;
-            } else {
-                head = (head + 1) % buffer.length;
+        private void discardFiles() throws IOException {
+            if (contentSink != null) {
+                contentSink.discard();
             }
-        }
-
-        public boolean containsPattern(byte[] pattern) {
-            if (size < pattern.length) return false;
-
-            for (int i = 0; i < pattern.length; i++) {
-                int bufferIndex = (head + size - pattern.length + i) % buffer.length;
-                if (buffer[bufferIndex] != pattern[i]) {
-                    return false;
-                }
+            for (ParseResult result : results) {
+                Files.deleteIfExists(result.filePath());
             }
-            return true;
         }
     }
 }
@@ -3,4 +3,7 @@ package com.banda.parser;
 
 import java.nio.file.Path;
 
-public record ParseResult(String fileName, Path filePath) {}
+/**
+ * @param contentHash lowercase hex SHA-256 of the stored content
+ */
+public record ParseResult(String fileName, Path filePath, String contentHash) {}
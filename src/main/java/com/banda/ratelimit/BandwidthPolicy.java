@@ -0,0 +1,18 @@
+package com.banda.ratelimit;
+
+import java.net.InetAddress;
+
+/**
+ * Decides how fast each transfer may go, e.g. {@link TokenBucketPolicy}.
+ */
+public interface BandwidthPolicy {
+    /** Puts no limit on any transfer. */
+    BandwidthPolicy UNLIMITED = (shareCode, client) -> RateLimiter.UNLIMITED;
+
+    /**
+     * @param shareCode the share being transferred
+     * @param client address of the receiving side, or null if unknown
+     * @return the limiter for one transfer, to be closed when it ends
+     */
+    RateLimiter open(int shareCode, InetAddress client);
+}
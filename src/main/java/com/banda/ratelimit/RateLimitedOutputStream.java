@@ -0,0 +1,34 @@
+package com.banda.ratelimit;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes through to a stream at the pace a {@link RateLimiter} allows. Closing this stream does
+ * not close the limiter.
+ */
+public class RateLimitedOutputStream extends FilterOutputStream {
+    private final RateLimiter limiter;
+
+    public RateLimitedOutputStream(OutputStream out, RateLimiter limiter) {
+        super(out);
+        this.limiter = limiter;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        limiter.acquire(1);
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int granted = (int) limiter.acquire(len);
+            out.write(b, off, granted);
+            off += granted;
+            len -= granted;
+        }
+    }
+}
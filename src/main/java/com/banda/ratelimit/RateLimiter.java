@@ -0,0 +1,33 @@
+package com.banda.ratelimit;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Paces the bytes of one transfer. Obtained from a {@link BandwidthPolicy} when the transfer
+ * starts and closed when it ends.
+ */
+public interface RateLimiter extends AutoCloseable {
+    /** Lets everything through at once. */
+    RateLimiter UNLIMITED = new RateLimiter() {
+        @Override
+        public long acquire(long bytes) {
+            return bytes;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /**
+     * Waits until some of {@code bytes} may be sent.
+     *
+     * @param bytes how many the caller has to send, at least 1
+     * @return how many may be sent now, between 1 and {@code bytes}
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    long acquire(long bytes) throws InterruptedIOException;
+
+    @Override
+    void close();
+}
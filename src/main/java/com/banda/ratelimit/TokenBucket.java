@@ -0,0 +1,60 @@
+package com.banda.ratelimit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket of {@code bytesPerSecond} that holds at most {@code burstBytes}, kept as a single
+ * theoretical arrival time (GCRA): the instant at which everything reserved so far has been paid
+ * for. Reserving bytes moves that instant forward with one compare-and-set, so refilling and taking
+ * tokens needs no lock and no background thread.
+ * <p>
+ * A reservation is never refused; the caller is told how long to wait before sending. Callers are
+ * served in the order they reserve, so transfers that reserve a quantum at a time take turns.
+ */
+public final class TokenBucket {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final long bytesPerSecond;
+    private final long burstNanos;
+    private final AtomicLong theoreticalArrival;
+
+    /**
+     * @param bytesPerSecond sustained rate, must be positive
+     * @param burstBytes bytes that may go out at once after the bucket has been idle
+     */
+    public TokenBucket(long bytesPerSecond, long burstBytes) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive: " + bytesPerSecond);
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstNanos = costOf(burstBytes);
+        this.theoreticalArrival = new AtomicLong(System.nanoTime() - burstNanos);
+    }
+
+    /**
+     * Takes {@code bytes} tokens, going into debt if there are not enough.
+     *
+     * @return nanoseconds to wait before the bytes may be sent, 0 if they may go now
+     */
+    public long reserve(long bytes) {
+        long cost = costOf(bytes);
+        while (true) {
+            long now = System.nanoTime();
+            long arrival = theoreticalArrival.get();
+            // An idle bucket refills up to the burst and no further
+            long next = Math.max(arrival, now - burstNanos) + cost;
+            if (theoreticalArrival.compareAndSet(arrival, next)) {
+                return Math.max(0, next - now);
+            }
+        }
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    private long costOf(long bytes) {
+        return (long) ((double) bytes * NANOS_PER_SECOND / bytesPerSecond);
+    }
+}
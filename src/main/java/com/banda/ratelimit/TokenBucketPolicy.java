@@ -0,0 +1,245 @@
+package com.banda.ratelimit;
+
+import com.banda.metrics.Counter;
+import com.banda.metrics.Gauge;
+import com.banda.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits transfers with a global {@link TokenBucket} and one bucket per share and per client
+ * address, each optional. Share and client buckets exist while a transfer uses them, so every
+ * connection of a segmented download draws on the same one.
+ * <p>
+ * A transfer takes tokens a small quantum at a time, at most a tenth of a second's worth of its
+ * narrowest limit, and reserves them from the narrowest bucket outwards: a transfer held back by
+ * its own limit does not hold global bandwidth while it waits. Buckets serve reservations in
+ * order, so active transfers sharing a bucket take turns quantum by quantum and split its rate
+ * evenly. Transfers no limit applies to go through in one piece and are only metered.
+ */
+public final class TokenBucketPolicy implements BandwidthPolicy {
+    private static final Logger log = LoggerFactory.getLogger(TokenBucketPolicy.class);
+    private static final int MIN_QUANTUM = 1024;
+
+    private final long shareRate;
+    private final long clientRate;
+    private final long burstBytes;
+    private final int quantum;
+    private final TokenBucket global;
+    private final Map<Integer, SharedBucket> shareBuckets = new ConcurrentHashMap<>();
+    private final Map<InetAddress, SharedBucket> clientBuckets = new ConcurrentHashMap<>();
+    private final RateMeter throughput = new RateMeter();
+
+    private final Gauge activeTransfers;
+    private final Counter globalThrottled;
+    private final Counter shareThrottled;
+    private final Counter clientThrottled;
+
+    /**
+     * @param path names the transfers in metrics, e.g. {@code relay} or {@code send}
+     * @param globalRate bytes per second of all transfers together, 0 for no limit; likewise for the others
+     * @param shareRate bytes per second of all transfers of one share
+     * @param clientRate bytes per second of all transfers to one client address
+     * @param burstBytes bytes a bucket lets through at once after being idle
+     * @param quantum most bytes a transfer takes from its buckets at a time
+     */
+    public TokenBucketPolicy(String path, long globalRate, long shareRate, long clientRate, long burstBytes, int quantum) {
+        this.shareRate = shareRate;
+        this.clientRate = clientRate;
+        this.burstBytes = Math.max(burstBytes, quantum);
+        this.quantum = quantum;
+        this.global = globalRate > 0 ? new TokenBucket(globalRate, this.burstBytes) : null;
+
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        this.activeTransfers = metrics.gauge("banda_rate_limited_transfers", "Transfers paced by a bandwidth policy",
+                "path", path);
+        metrics.gauge("banda_transfer_rate_bytes_per_second", "Bytes per second sent over the last second",
+                "path", path, throughput::rate);
+        this.globalThrottled = throttledCounter(metrics, path + "_global");
+        this.shareThrottled = throttledCounter(metrics, path + "_share");
+        this.clientThrottled = throttledCounter(metrics, path + "_client");
+        registerLimit(metrics, path + "_global", globalRate);
+        registerLimit(metrics, path + "_share", shareRate);
+        registerLimit(metrics, path + "_client", clientRate);
+        metrics.gauge("banda_rate_limit_buckets", "Per-share and per-client buckets in use", "limit", path + "_share",
+                shareBuckets::size);
+        metrics.gauge("banda_rate_limit_buckets", "Per-share and per-client buckets in use", "limit", path + "_client",
+                clientBuckets::size);
+        if (globalRate > 0 || shareRate > 0 || clientRate > 0) {
+            log.info("Limiting {} transfers to {} B/s overall, {} B/s per share, {} B/s per client (0 = no limit)",
+                    path, globalRate, shareRate, clientRate);
+        }
+    }
+
+    /**
+     * Reads {@code banda.<path>.rate.global}, {@code .share} and {@code .client} in bytes per second (0, no
+     * limit, by default) and {@code banda.rate.burst} (256 KiB) and {@code banda.rate.quantum} (64 KiB).
+     */
+    public static TokenBucketPolicy fromSystemProperties(String path) {
+        String prefix = "banda." + path + ".rate.";
+        return new TokenBucketPolicy(path,
+                Long.getLong(prefix + "global", 0),
+                Long.getLong(prefix + "share", 0),
+                Long.getLong(prefix + "client", 0),
+                Long.getLong("banda.rate.burst", 256 * 1024),
+                Integer.getInteger("banda.rate.quantum", 64 * 1024));
+    }
+
+    @Override
+    public RateLimiter open(int shareCode, InetAddress client) {
+        activeTransfers.increment();
+        TokenBucket share = shareRate > 0 ? retain(shareBuckets, shareCode, shareRate) : null;
+        TokenBucket perClient = clientRate > 0 && client != null ? retain(clientBuckets, client, clientRate) : null;
+        return new Transfer(shareCode, client, share, perClient);
+    }
+
+    private <K> TokenBucket retain(Map<K, SharedBucket> buckets, K key, long rate) {
+        return buckets.compute(key, (k, shared) -> {
+            SharedBucket retained = shared != null ? shared : new SharedBucket(new TokenBucket(rate, burstBytes));
+            retained.users++;
+            return retained;
+        }).bucket;
+    }
+
+    private static <K> void release(Map<K, SharedBucket> buckets, K key) {
+        buckets.computeIfPresent(key, (k, shared) -> --shared.users == 0 ? null : shared);
+    }
+
+    private static Counter throttledCounter(MetricsRegistry metrics, String limit) {
+        return metrics.counter("banda_rate_limit_throttled_total", "Times a transfer waited for tokens, by limit",
+                "limit", limit);
+    }
+
+    private static void registerLimit(MetricsRegistry metrics, String limit, long rate) {
+        if (rate > 0) {
+            metrics.gauge("banda_rate_limit_bytes_per_second", "Configured bandwidth limit", "limit", limit, () -> rate);
+        }
+    }
+
+    /** Reserves from {@code bucket} and waits for the tokens. */
+    private static void pace(TokenBucket bucket, long bytes, Counter throttled) throws InterruptedIOException {
+        long wait = bucket.reserve(bytes);
+        if (wait <= 0) {
+            return;
+        }
+        throttled.increment();
+        try {
+            Thread.sleep(Duration.ofNanos(wait));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+        }
+    }
+
+    private final class Transfer implements RateLimiter {
+        private final int shareCode;
+        private final InetAddress client;
+        private final TokenBucket share;
+        private final TokenBucket perClient;
+        // The buckets that apply, narrowest first, and the counter of each
+        private final TokenBucket[] buckets;
+        private final Counter[] throttled;
+        private final long chunk;
+        private boolean closed;
+
+        private Transfer(int shareCode, InetAddress client, TokenBucket share, TokenBucket perClient) {
+            this.shareCode = shareCode;
+            this.client = client;
+            this.share = share;
+            this.perClient = perClient;
+            TokenBucket[] all = {perClient, share, global};
+            Counter[] counters = {clientThrottled, shareThrottled, globalThrottled};
+            Integer[] order = {0, 1, 2};
+            Arrays.sort(order, Comparator.comparingLong(i -> all[i] == null ? Long.MAX_VALUE : all[i].getBytesPerSecond()));
+            int count = 0;
+            for (TokenBucket bucket : all) {
+                if (bucket != null) {
+                    count++;
+                }
+            }
+            this.buckets = new TokenBucket[count];
+            this.throttled = new Counter[count];
+            for (int i = 0; i < count; i++) {
+                buckets[i] = all[order[i]];
+                throttled[i] = counters[order[i]];
+            }
+            this.chunk = count == 0 ? Long.MAX_VALUE
+                    : Math.max(MIN_QUANTUM, Math.min(quantum, buckets[0].getBytesPerSecond() / 10));
+        }
+
+        @Override
+        public long acquire(long bytes) throws InterruptedIOException {
+            long granted = Math.min(bytes, chunk);
+            for (int i = 0; i < buckets.length; i++) {
+                pace(buckets[i], granted, throttled[i]);
+            }
+            throughput.record(granted);
+            return granted;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (share != null) {
+                release(shareBuckets, shareCode);
+            }
+            if (perClient != null) {
+                release(clientBuckets, client);
+            }
+            activeTransfers.decrement();
+        }
+    }
+
+    private static final class SharedBucket {
+        private final TokenBucket bucket;
+        private int users; // only changed inside the map's compute
+
+        private SharedBucket(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+
+    /**
+     * Bytes per second over the last window of at least a second. Bytes recorded while a window
+     * is being closed may land in either window, which is close enough for a gauge.
+     */
+    private static final class RateMeter {
+        private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+        private final LongAdder bytes = new LongAdder();
+        private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+        private volatile long lastRate;
+
+        void record(long count) {
+            bytes.add(count);
+            roll(System.nanoTime());
+        }
+
+        long rate() {
+            roll(System.nanoTime());
+            return lastRate;
+        }
+
+        private void roll(long now) {
+            long start = windowStart.get();
+            long elapsed = now - start;
+            if (elapsed >= WINDOW_NANOS && windowStart.compareAndSet(start, now)) {
+                lastRate = (long) ((double) bytes.sumThenReset() * WINDOW_NANOS / elapsed);
+            }
+        }
+    }
+}
@@ -1,10 +1,12 @@
 package com.banda.response;
 
+import com.banda.metrics.MetricsRegistry;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 
 public class ResponseHelper {
 
@@ -12,22 +14,27 @@ public class ResponseHelper {
         Headers headers = exchange.getResponseHeaders();
         headers.add("Access-Control-Allow-Origin", "*");
         headers.add("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
-        headers.add("Access-Control-Allow-Headers", "Content-Type, Authorization");
+        headers.add("Access-Control-Allow-Headers", "Content-Type, Authorization, Range, If-Range");
+        headers.add("Access-Control-Expose-Headers", "Content-Disposition, Content-Range, Accept-Ranges, ETag, Repr-Digest");
     }
 
     public void sendErrorResponse(HttpExchange exchange, int statusCode, String message) throws IOException {
-        exchange.sendResponseHeaders(statusCode, message.getBytes().length);
+        MetricsRegistry.getDefault().counter("banda_http_errors_total", "Error responses sent, by status code",
+                "status", Integer.toString(statusCode)).increment();
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(statusCode, body.length);
         try (OutputStream os = exchange.getResponseBody()) {
-            os.write(message.getBytes());
+            os.write(body);
         }
     }
 
     public void sendJsonResponse(HttpExchange exchange, int statusCode, String json) throws IOException {
         Headers headers = exchange.getResponseHeaders();
         headers.add("Content-Type", "application/json");
-        exchange.sendResponseHeaders(statusCode, json.getBytes().length);
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(statusCode, body.length);
         try (OutputStream os = exchange.getResponseBody()) {
-            os.write(json.getBytes());
+            os.write(body);
         }
     }
 }
@@ -0,0 +1,183 @@
+package com.banda.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Content-addressed store for uploaded files. Every distinct content is kept once, named by its
+ * SHA-256 next to the upload it came from, and counts the shares that use it; uploading content
+ * that is already stored drops the new copy and points at the stored one. A blob has no name of
+ * its own beyond the hash, what a download is called is up to the share that offers it.
+ * <p>
+ * Files that were not stored here are simply deleted on {@link #release(Path)}.
+ */
+public class BlobStore {
+    private static final int HASH_HEX_LENGTH = 64;
+    private static final Logger log = LoggerFactory.getLogger(BlobStore.class);
+
+    private final ConcurrentHashMap<String, Blob> blobs = new ConcurrentHashMap<>();
+    private final LongAdder dedupHits = new LongAdder();
+    private final LongAdder bytesSaved = new LongAdder();
+    private final List<Consumer<Path>> deletionListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Registers a callback run after a released file has been deleted, e.g. to drop cached copies.
+     */
+    public void addDeletionListener(Consumer<Path> listener) {
+        deletionListeners.add(listener);
+    }
+
+    /**
+     * Takes over a freshly written upload. The first upload of some content is moved into place
+     * outside the map's lock; an identical upload arriving meanwhile waits for that move instead
+     * of storing a second copy.
+     *
+     * @param staged the upload as written by the parser; moved or deleted by this call
+     * @param contentHash lowercase hex SHA-256 of its content
+     * @return the stored blob, to be handed back through {@link #release(Path)} when no longer shared
+     */
+    public Path store(Path staged, String contentHash) throws IOException {
+        while (true) {
+            boolean[] created = new boolean[1];
+            Blob blob = blobs.compute(contentHash, (hash, existing) -> {
+                if (existing != null) {
+                    existing.references++;
+                    return existing;
+                }
+                created[0] = true;
+                return new Blob(staged.resolveSibling(hash));
+            });
+            if (created[0]) {
+                try {
+                    // A file left under this name by an earlier run is not referenced by anyone
+                    Files.move(staged, blob.path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException | RuntimeException e) {
+                    blobs.remove(contentHash, blob);
+                    blob.stored.completeExceptionally(e);
+                    throw e;
+                }
+                blob.stored.complete(null);
+                log.debug("Stored {} as {}", staged.getFileName(), blob.path.getFileName());
+                return blob.path;
+            }
+            if (awaitStored(blob)) {
+                long size = Files.size(staged);
+                Files.delete(staged);
+                dedupHits.increment();
+                bytesSaved.add(size);
+                log.debug("{} is already stored as {}", staged.getFileName(), blob.path.getFileName());
+                return blob.path;
+            }
+            // The first copy could not be moved into place and was dropped with its references, try ours
+        }
+    }
+
+    /**
+     * Waits until the upload that created {@code blob} has moved its file into place.
+     *
+     * @return false if that failed, so the blob never existed
+     */
+    private static boolean awaitStored(Blob blob) throws IOException {
+        try {
+            blob.stored.get();
+            return true;
+        } catch (ExecutionException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an identical upload to be stored");
+        }
+    }
+
+    /**
+     * Drops one reference; the blob is deleted with its last reference.
+     */
+    public void release(Path path) {
+        String hash = path.getFileName().toString();
+        // [managed, deleted]
+        boolean[] outcome = new boolean[2];
+        blobs.computeIfPresent(hash, (key, blob) -> {
+            if (!blob.path.equals(path)) {
+                return blob;
+            }
+            outcome[0] = true;
+            if (--blob.references > 0) {
+                return blob;
+            }
+            // Deleted under the lock, so a new blob of the same content cannot be moved in first
+            delete(path);
+            outcome[1] = true;
+            return null;
+        });
+        if (!outcome[0]) {
+            delete(path);
+            outcome[1] = true;
+        }
+        if (outcome[1]) {
+            deletionListeners.forEach(listener -> listener.accept(path));
+        }
+    }
+
+    /**
+     * SHA-256 of a stored file, read back from its name.
+     *
+     * @return the 32-byte hash, or null if the file was not named by this store
+     */
+    public static byte[] contentHash(Path path) {
+        String name = path.getFileName().toString();
+        if (name.length() != HASH_HEX_LENGTH) {
+            return null;
+        }
+        try {
+            return HexFormat.of().parseHex(name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public int blobCount() {
+        return blobs.size();
+    }
+
+    /** Uploads whose content was already stored. */
+    public long dedupHitCount() {
+        return dedupHits.sum();
+    }
+
+    /** Disk space not taken by duplicate uploads. */
+    public long bytesSaved() {
+        return bytesSaved.sum();
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Failed to delete shared file {}: {}", path, e.getMessage());
+        }
+    }
+
+    private static final class Blob {
+        private final Path path;
+        private final CompletableFuture<Void> stored = new CompletableFuture<>();
+        private int references = 1; // only changed inside the map's compute
+
+        private Blob(Path path) {
+            this.path = path;
+        }
+    }
+}
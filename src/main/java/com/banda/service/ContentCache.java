@@ -0,0 +1,187 @@
+package com.banda.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Byte-bounded LRU cache of shared file content in direct (off-heap) buffers, so popular shares
+ * are sent from memory. Small files are kept whole, larger ones only their first bytes, and
+ * compressed variants are kept once the first compressed download has built them.
+ * <p>
+ * Stored files are named after their content hash and never change, so entries cannot go stale;
+ * they are dropped when the file is deleted or the LRU needs the room. Direct buffers are freed
+ * by the garbage collector, so the process needs {@code -XX:MaxDirectMemorySize} above the capacity.
+ */
+public class ContentCache {
+    private static final Logger log = LoggerFactory.getLogger(ContentCache.class);
+
+    private final long capacity;
+    private final int maxEntrySize;
+    private final int prefixSize;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long usedBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity total bytes held, 0 disables the cache
+     * @param maxEntrySize files up to this size are cached whole, and no entry is larger
+     * @param prefixSize bytes cached from the start of larger files, 0 for none
+     */
+    public ContentCache(long capacity, int maxEntrySize, int prefixSize) {
+        this.capacity = capacity;
+        this.maxEntrySize = maxEntrySize;
+        this.prefixSize = Math.min(prefixSize, maxEntrySize);
+    }
+
+    public static ContentCache fromSystemProperties() {
+        return new ContentCache(
+                Long.getLong("banda.cache.size", 64L * 1024 * 1024),
+                Integer.getInteger("banda.cache.entry.max", 4 * 1024 * 1024),
+                Integer.getInteger("banda.cache.prefix", 256 * 1024));
+    }
+
+    /**
+     * @param encoding compression of the variant, or null for the raw file
+     * @return the cached content, or null on a miss
+     */
+    public Entry get(Path file, String encoding) {
+        if (capacity <= 0) {
+            return null;
+        }
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(new Key(file, encoding));
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.duplicate();
+    }
+
+    /**
+     * Reads a raw file into the cache: whole if it is small enough, otherwise its prefix.
+     *
+     * @return the new entry, or null if nothing was cached
+     */
+    public Entry load(Path file, FileChannel channel, long fileSize) throws IOException {
+        long length = fileSize <= maxEntrySize ? fileSize : prefixSize;
+        if (capacity <= 0 || length <= 0) {
+            return null;
+        }
+        ByteBuffer data = ByteBuffer.allocateDirect((int) length);
+        while (data.hasRemaining()) {
+            if (channel.read(data, data.position()) == -1) {
+                return null; // file shrank, should not happen to a stored blob
+            }
+        }
+        data.flip();
+        return put(file, null, data, fileSize);
+    }
+
+    /**
+     * Caches a compressed variant built for a download.
+     *
+     * @param compressed the whole compressed body
+     * @param fileSize size of the raw file
+     * @return the new entry, or null if it does not fit
+     */
+    public Entry putCompressed(Path file, String encoding, byte[] compressed, int length, long fileSize) {
+        if (capacity <= 0 || length > maxEntrySize) {
+            return null;
+        }
+        ByteBuffer data = ByteBuffer.allocateDirect(length);
+        data.put(compressed, 0, length).flip();
+        return put(file, encoding, data, fileSize);
+    }
+
+    /** Largest raw file worth compressing in memory: one whose compressed form could still fit an entry. */
+    public long maxCompressSource() {
+        return capacity <= 0 ? 0 : (long) maxEntrySize * 4;
+    }
+
+    /** Drops every variant of a file, called when it is deleted. */
+    public synchronized void invalidate(Path file) {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Entry> cached = it.next();
+            if (cached.getKey().file.equals(file)) {
+                usedBytes -= cached.getValue().data.capacity();
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized long usedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int entryCount() {
+        return entries.size();
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    private Entry put(Path file, String encoding, ByteBuffer data, long fileSize) {
+        Entry entry = new Entry(data.asReadOnlyBuffer(), fileSize);
+        synchronized (this) {
+            Entry previous = entries.put(new Key(file, encoding), entry);
+            if (previous != null) {
+                usedBytes -= previous.data.capacity();
+            }
+            usedBytes += data.capacity();
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (usedBytes > capacity && eldest.hasNext()) {
+                Entry evicted = eldest.next();
+                eldest.remove();
+                usedBytes -= evicted.data.capacity();
+                evictions.increment();
+            }
+        }
+        log.debug("Cached {} bytes of {} ({})", data.capacity(), file.getFileName(), encoding == null ? "raw" : encoding);
+        return entry.duplicate();
+    }
+
+    /**
+     * Cached bytes of a file.
+     *
+     * @param data the whole compressed body for a compressed variant; for the raw file, its first
+     *             {@code data.remaining()} bytes
+     * @param fileSize size of the raw file
+     */
+    public record Entry(ByteBuffer data, long fileSize) {
+        /** Whether the raw file is cached in full, so the file itself need not be opened. */
+        public boolean isComplete() {
+            return data.remaining() == fileSize;
+        }
+
+        private Entry duplicate() {
+            return new Entry(data.duplicate(), fileSize);
+        }
+    }
+
+    private record Key(Path file, String encoding) {}
+}
@@ -1,99 +1,486 @@
 package com.banda.service;
 
-import com.banda.httphandlers.FileMetadata;
+import com.banda.buffers.BufferPool;
+import com.banda.buffers.PooledBuffer;
+import com.banda.exceptions.ShareNotFoundException;
+import com.banda.metrics.Counter;
+import com.banda.metrics.Gauge;
+import com.banda.metrics.Histogram;
+import com.banda.metrics.MetricsRegistry;
+import com.banda.ratelimit.BandwidthPolicy;
+import com.banda.ratelimit.RateLimitedOutputStream;
+import com.banda.ratelimit.RateLimiter;
+import com.banda.ratelimit.TokenBucketPolicy;
 import com.banda.response.HttpStatus;
 import com.banda.response.ResponseHelper;
+import com.banda.utils.ByteRange;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class FileDownloadService {
+    private static final int RELAY_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_RANGES = 16; // more than this and the Range header is ignored
+    private static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int DEFAULT_SEGMENT_CONNECTIONS = 4;
+    private static final long DEFAULT_SEGMENT_BUFFER_MAX = 64L * 1024 * 1024;
     private final ResponseHelper responseHelper;
+    private final int transferPort;
+    private final SegmentedFetcher segmentedFetcher;
+    private final BandwidthPolicy bandwidthPolicy;
     private static final Logger log = LoggerFactory.getLogger(FileDownloadService.class);
+    private static final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private static final Counter downloadBytes = metrics.counter("banda_download_bytes_total",
+            "Response body bytes relayed to download clients");
+    private static final Histogram firstByteTime = metrics.histogram("banda_download_first_byte_seconds",
+            "Time from a download request to its response headers", Histogram.DURATION_BOUNDS, Histogram.NANOS);
+    private static final Histogram downloadDuration = metrics.histogram("banda_download_duration_seconds",
+            "Time to relay a successful download", Histogram.DURATION_BOUNDS, Histogram.NANOS);
+    private static final Gauge sharerConnections = metrics.gauge("banda_sharer_connections",
+            "Relay connections open to the transfer listener");
+    private static final Gauge downloadBytesInFlight = metrics.gauge("banda_bytes_in_flight",
+            "Declared body size of uploads and downloads in progress", "direction", "download");
 
-    public FileDownloadService() {
-        this.responseHelper = new ResponseHelper();
+    /**
+     * Segment size, the most connections per download and the segment bytes all downloads may
+     * buffer ahead of their clients come from the system properties {@code banda.segment.size},
+     * {@code banda.segment.connections} and {@code banda.segment.buffer.max}.
+     *
+     * @param transferPort port of the {@link Filesharer} transfer listener
+     * @param segmentExecutor runs the segment fetches of large downloads
+     */
+    public FileDownloadService(int transferPort, Executor segmentExecutor) {
+        this(transferPort, segmentExecutor, TokenBucketPolicy.fromSystemProperties("relay"));
     }
 
-    public void downloadAndStreamFile(HttpExchange exchange , int port){
-        log.debug("Starting file download and stream process on port: {}", port);
-        try(Socket clientSocket = new Socket("localhost",port)) {
-            InputStream inputStream = clientSocket.getInputStream();
-            File tempFile = File.createTempFile("downloaded_file", ".tmp");
+    /**
+     * @param bandwidthPolicy paces what is written to each downloading client
+     */
+    public FileDownloadService(int transferPort, Executor segmentExecutor, BandwidthPolicy bandwidthPolicy) {
+        this.responseHelper = new ResponseHelper();
+        this.transferPort = transferPort;
+        this.segmentedFetcher = new SegmentedFetcher(segmentExecutor,
+                Integer.getInteger("banda.segment.size", DEFAULT_SEGMENT_SIZE),
+                Integer.getInteger("banda.segment.connections", DEFAULT_SEGMENT_CONNECTIONS),
+                Long.getLong("banda.segment.buffer.max", DEFAULT_SEGMENT_BUFFER_MAX));
+        this.bandwidthPolicy = bandwidthPolicy;
+    }
 
-            try {
-                FileMetadata metadata = downloadFile(inputStream, tempFile);
-                streamFileToClient(exchange, tempFile, metadata);
-                log.debug("File downloaded and streamed successfully: {}", metadata.fileName());
-            } finally {
-                log.debug("Cleaning up temporary file: {}", tempFile.getAbsolutePath());
-                tempFile.delete();
+    public void downloadAndStreamFile(HttpExchange exchange , int code){
+        log.debug("Starting file download and stream process for share: {}", code);
+        long start = System.nanoTime();
+        List<ByteRange> ranges = ByteRange.parseHeader(exchange.getRequestHeaders().getFirst("Range"));
+        if (ranges.size() > MAX_RANGES) {
+            log.debug("Ignoring Range header with {} ranges", ranges.size());
+            ranges = List.of();
+        }
+        // Only whole-file responses are compressed, a byte range always refers to the raw file
+        String encoding = ranges.isEmpty() ? negotiateEncoding(exchange.getRequestHeaders().getFirst("Accept-Encoding")) : null;
+        InetAddress client = clientAddress(exchange);
+        SharerResponse response = null;
+        long relayed = 0;
+        try {
+            response = request(code, client, ranges.size() > 1 ? ranges.get(0) : firstSegment(ranges), encoding, 0);
+            if (response.status == HttpStatus.NOT_FOUND.code()) {
+                throw new ShareNotFoundException("No share found for code: " + code);
+            }
+            if (!ranges.isEmpty() && (!response.supportsRanges() || !ifRangeMatches(exchange, response))) {
+                // Range must be ignored: archive built on the fly, or the client's copy is stale
+                ranges = List.of();
+                if ((response.range != null && response.range.first() != 0)
+                        || response.status == HttpStatus.RANGE_NOT_SATISFIABLE.code()) {
+                    response.close();
+                    response = requestFollowUp(code, client, response.downloadToken, firstSegment(ranges));
+                }
+            }
+            if (ranges.isEmpty() && response.status == HttpStatus.RANGE_NOT_SATISFIABLE.code()) {
+                // Empty file, nothing to segment
+                response.close();
+                response = requestFollowUp(code, client, response.downloadToken, null);
             }
 
+            if (ranges.isEmpty()) {
+                // A compressed body has no known length and cannot be split into segments
+                ByteRange whole = response.encoding == null && response.size > 0 ? new ByteRange(0, response.size - 1) : null;
+                relayed = relayToClient(exchange, code, response, whole, HttpStatus.OK, start);
+            } else if (ranges.size() == 1) {
+                if (response.status == HttpStatus.RANGE_NOT_SATISFIABLE.code()) {
+                    sendRangeNotSatisfiable(exchange, response.size);
+                } else {
+                    ByteRange target = ranges.get(0).resolve(response.size);
+                    exchange.getResponseHeaders().add("Content-Range", target.contentRange(response.size));
+                    relayed = relayToClient(exchange, code, response, target, HttpStatus.PARTIAL_CONTENT, start);
+                }
+            } else {
+                relayed = relayMultipleRanges(exchange, code, ranges, response, start);
+            }
+            long elapsedNanos = System.nanoTime() - start;
+            downloadDuration.record(elapsedNanos);
+            log.info("Relayed {} of share {} - {} bytes in {} ms", response.fileName, code, relayed,
+                    TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
         } catch (IOException e) {
             log.error("Error during file download and streaming: {}", e.getMessage(), e);
             throw new RuntimeException(e);
+        } finally {
+            if (response != null) {
+                response.closeQuietly();
+            }
         }
     }
 
-    private  FileMetadata downloadFile(InputStream inputStream, File tempFile) throws IOException {
-        log.debug("Starting file download to temporary file: {}", tempFile.getAbsolutePath());
-        String filename = tempFile.getName();
+    /**
+     * What to ask the sharer for first when the client wants the whole file or a single range:
+     * at most one segment, so a large body can be fetched in parallel once its size is known.
+     * Archives ignore the range and stream whole. Suffix ranges are asked for as they are.
+     */
+    private ByteRange firstSegment(List<ByteRange> ranges) {
+        long segmentSize = segmentedFetcher.segmentSize();
+        if (ranges.isEmpty()) {
+            return new ByteRange(0, segmentSize - 1);
+        }
+        ByteRange range = ranges.get(0);
+        if (range.first() == -1 || (range.last() != -1 && range.length() <= segmentSize)) {
+            return range;
+        }
+        return new ByteRange(range.first(), range.first() + segmentSize - 1);
+    }
 
+    /**
+     * Picks the content coding for a whole-file response from {@code Accept-Encoding}, preferring
+     * gzip over deflate. zstd is not offered, the JDK has no encoder for it.
+     *
+     * @return {@code gzip}, {@code deflate}, or null for the raw file
+     */
+    private static String negotiateEncoding(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        boolean deflate = false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            String name = parts[0].trim().toLowerCase(Locale.ROOT);
+            if (parts.length > 1 && parts[1].trim().replace(" ", "").matches("q=0(\\.0*)?")) {
+                continue; // explicitly refused
+            }
+            if (name.equals("gzip") || name.equals("*")) {
+                return "gzip";
+            }
+            deflate |= name.equals("deflate");
+        }
+        return deflate ? "deflate" : null;
+    }
 
-        try (FileOutputStream fileOutputStream = new FileOutputStream(tempFile)) {
-            // Read header to get filename
-            filename = readFileHeader(inputStream);
+    /**
+     * Opens another connection for a download the first request already admitted, so it does not
+     * count as one more download of the share.
+     *
+     * @param downloadToken token from the sharer's reply to the first request
+     * @throws ShareNotFoundException if the share was removed since the first request
+     */
+    private SharerResponse requestFollowUp(int code, InetAddress client, long downloadToken, ByteRange range)
+            throws IOException {
+        if (downloadToken == 0) {
+            throw new IOException("Sharer of share " + code + " gave no download token for follow-up requests");
+        }
+        SharerResponse response = request(code, client, range, null, downloadToken);
+        if (response.status == HttpStatus.NOT_FOUND.code()) {
+            response.close();
+            throw new ShareNotFoundException("Share " + code + " is no longer available");
+        }
+        return response;
+    }
 
-            // Read file content
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                fileOutputStream.write(buffer, 0, bytesRead);
-            }
+    /**
+     * Opens a connection to the transfer listener and reads the sharer's reply header.
+     *
+     * @param client address of the HTTP client, passed on so the sharer can apply per-client limits
+     * @param range byte range to ask for, or null for the whole file
+     * @param compression encoding the client accepts; the sharer only applies it to compressible files
+     * @param downloadToken token of the download already admitted for a follow-up connection, 0 for a new download
+     */
+    private SharerResponse request(int code, InetAddress client, ByteRange range, String compression,
+                                   long downloadToken) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), transferPort);
+        sharerConnections.increment();
+        try {
+            OutputStream handshake = socket.getOutputStream();
+            handshake.write(TransferProtocol.encodeRequest(
+                    new TransferRequest(code, range, compression, downloadToken, client)));
+            handshake.flush();
+            return readFileHeader(socket);
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            sharerConnections.decrement();
+            throw e;
         }
-        return  new FileMetadata(filename, tempFile.length());
+    }
+
+    /**
+     * Reads the sharer's reply frame through a buffer, which then carries on as the body stream;
+     * reads of a relay buffer's size bypass it.
+     */
+    private SharerResponse readFileHeader(Socket socket) throws IOException {
+        log.debug("Reading file header to extract filename and size");
+        DataInputStream inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        return new SharerResponse(socket, inputStream, TransferProtocol.readHeader(inputStream));
+    }
 
+    /**
+     * If-Range only carries our entity tag; a date or any other tag means the client's copy may differ.
+     */
+    private boolean ifRangeMatches(HttpExchange exchange, SharerResponse response) {
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        return ifRange == null || ifRange.trim().equals(response.entityTag());
     }
 
-    private String readFileHeader(InputStream inputStream) throws IOException {
-        log.debug("Reading file header to extract filename");
-        ByteArrayOutputStream headerBaos = new ByteArrayOutputStream();
-        int b;
-        while ((b = inputStream.read()) != -1) {
-            if (b == '\n') break;
-            headerBaos.write(b);
+    private void addFileHeaders(HttpExchange exchange, SharerResponse response) {
+        Headers headers = exchange.getResponseHeaders();
+        headers.add("Content-Disposition", "attachment; filename=\"" + response.fileName + "\"");
+        headers.add("Vary", "Accept-Encoding");
+        if (response.encoding != null) {
+            headers.add("Content-Encoding", response.encoding);
+        } else if (response.contentHash != null) {
+            // Digest of the whole file (RFC 9530), also valid on a partial response
+            headers.add("Repr-Digest", "sha-256=:" + Base64.getEncoder().encodeToString(response.contentHash) + ":");
+        }
+        if (response.supportsRanges()) {
+            headers.add("Accept-Ranges", "bytes");
+            headers.add("ETag", response.entityTag());
+        }
+    }
+
+    /**
+     * Copies bytes to the HTTP client as they arrive from the sharer. Only one buffer is in
+     * flight, so a slow client holds back the sharer through TCP flow control instead of
+     * growing memory.
+     * <p>
+     * When the first connection only carried the start of {@code target}, the rest is fetched
+     * in segments over parallel connections and written in order behind it.
+     *
+     * @param target absolute range the client gets, or null when the size is unknown or zero
+     * @param start {@link System#nanoTime()} when the download request was received
+     * @return bytes written to the client
+     */
+    private long relayToClient(HttpExchange exchange, int code, SharerResponse response, ByteRange target,
+                               HttpStatus status, long start) throws IOException {
+        log.debug("Relaying file to client: {}", response.fileName);
+        addFileHeaders(exchange, response);
+        exchange.getResponseHeaders().add("Content-Type", response.contentType());
+
+        // Unknown size (e.g. a zip built on the fly) goes out chunked
+        long expected = target != null ? target.length() : response.bodyLength();
+        exchange.sendResponseHeaders(status.code(), expected >= 0 ? expected : 0);
+        firstByteTime.recordSince(start);
+        log.debug("Response headers set for file download: {}", exchange.getResponseHeaders());
+        long inFlight = Math.max(0, expected);
+        downloadBytesInFlight.add(inFlight);
+        InetAddress client = clientAddress(exchange);
+        RateLimiter limiter = bandwidthPolicy.open(code, client);
+        CountingOutputStream os = new CountingOutputStream(new RateLimitedOutputStream(exchange.getResponseBody(), limiter));
+        try (limiter) {
+            copyBody(response, os);
+            if (target != null && response.range != null && response.range.last() < target.last()) {
+                ByteRange rest = new ByteRange(response.range.last() + 1, target.last());
+                log.debug("Fetching {} of {} in segments", rest, response.fileName);
+                segmentedFetcher.fetch(rest, segment -> openSegment(code, client, response.downloadToken, segment), os);
+            }
+            // Only a complete body is closed; on failure the server drops the connection, so the
+            // client sees a truncated response instead of a shorter one that looks complete
+            os.close();
+        } finally {
+            downloadBytesInFlight.add(-inFlight);
+            downloadBytes.add(os.getByteCount());
         }
+        return os.getByteCount();
+    }
 
-        String header = headerBaos.toString().trim();
-        if (header.startsWith("Filename: ")) {
-            return header.substring("Filename: ".length());
+    private InputStream openSegment(int code, InetAddress client, long downloadToken, ByteRange segment)
+            throws IOException {
+        SharerResponse response = requestFollowUp(code, client, downloadToken, segment);
+        if (!segment.equals(response.range)) {
+            response.close();
+            throw new IOException("Sharer did not serve segment " + segment + " of share " + code);
         }
-        return "downloaded-file";
+        return new FilterInputStream(response.body) {
+            @Override
+            public void close() throws IOException {
+                response.close();
+            }
+        };
     }
 
+    /**
+     * Answers a multi-range request with a {@code multipart/byteranges} body; every range is
+     * fetched from the sharer over its own connection, starting at its own offset.
+     *
+     * @return bytes written to the client, 0 when no range was satisfiable
+     */
+    private long relayMultipleRanges(HttpExchange exchange, int code, List<ByteRange> ranges, SharerResponse first,
+                                     long start) throws IOException {
+        List<ByteRange> satisfiable = new ArrayList<>();
+        long inFlight = 0;
+        for (ByteRange range : ranges) {
+            ByteRange resolved = range.resolve(first.size);
+            if (resolved != null) {
+                satisfiable.add(resolved);
+                inFlight += resolved.length();
+            }
+        }
+        if (satisfiable.isEmpty()) {
+            sendRangeNotSatisfiable(exchange, first.size);
+            return 0;
+        }
 
-    private void streamFileToClient(HttpExchange exchange, File tempFile, FileMetadata metadata) throws IOException {
-        log.debug("Streaming file to client: {}", metadata.fileName());
-        Headers headers = exchange.getResponseHeaders();
-        headers.add("Content-Disposition", "attachment; filename=\"" + metadata.fileName() + "\"");
-        headers.add("Content-Type", "application/octet-stream");
+        String boundary = "banda-" + UUID.randomUUID();
+        addFileHeaders(exchange, first);
+        exchange.getResponseHeaders().add("Content-Type", "multipart/byteranges; boundary=" + boundary);
+        exchange.sendResponseHeaders(HttpStatus.PARTIAL_CONTENT.code(), 0);
+        firstByteTime.recordSince(start);
+        downloadBytesInFlight.add(inFlight);
+        InetAddress client = clientAddress(exchange);
+        RateLimiter limiter = bandwidthPolicy.open(code, client);
+        CountingOutputStream os = new CountingOutputStream(new RateLimitedOutputStream(exchange.getResponseBody(), limiter));
+        try (limiter) {
+            for (ByteRange range : satisfiable) {
+                // Open the part before writing its header, so a failure never leaves an empty part behind
+                SharerResponse part = range.equals(first.range) ? first : requestFollowUp(code, client, first.downloadToken, range);
+                try (part) {
+                    if (!range.equals(part.range)) {
+                        throw new IOException("Sharer did not serve range " + range + " of share " + code);
+                    }
+                    String partHeader = "\r\n--" + boundary + "\r\nContent-Type: " + first.contentType() + "\r\n"
+                            + "Content-Range: " + range.contentRange(first.size) + "\r\n\r\n";
+                    os.write(partHeader.getBytes(StandardCharsets.US_ASCII));
+                    copyBody(part, os);
+                }
+            }
+            os.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+            os.close(); // as in relayToClient, a failed body is left unterminated
+        } finally {
+            downloadBytesInFlight.add(-inFlight);
+            downloadBytes.add(os.getByteCount());
+        }
+        return os.getByteCount();
+    }
 
-        exchange.sendResponseHeaders(HttpStatus.OK.code(), metadata.fileSize());
-        log.debug("Response headers set for file download: {}", headers);
-        try (OutputStream os = exchange.getResponseBody();
-             FileInputStream fis = new FileInputStream(tempFile)) {
+    private static InetAddress clientAddress(HttpExchange exchange) {
+        InetSocketAddress remote = exchange.getRemoteAddress();
+        return remote == null ? null : remote.getAddress();
+    }
 
-            byte[] buffer = new byte[4096];
+    /**
+     * Relays the body of a 200 or 206 reply. A body of known length must arrive whole; one of unknown
+     * length (compressed, or an archive built on the fly) ends when the sharer closes the connection
+     * and must at least not be empty, which neither a gzip stream nor a zip archive ever is.
+     */
+    private void copyBody(SharerResponse response, OutputStream os) throws IOException {
+        if (response.status != HttpStatus.OK.code() && response.status != HttpStatus.PARTIAL_CONTENT.code()) {
+            throw new IOException("Sharer replied " + response.status + " instead of a body");
+        }
+        long relayed = 0;
+        try (PooledBuffer pooled = BufferPool.heap().acquire(RELAY_BUFFER_SIZE)) {
+            byte[] buffer = pooled.array();
             int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
+            while ((bytesRead = response.body.read(buffer, 0, RELAY_BUFFER_SIZE)) != -1) {
                 os.write(buffer, 0, bytesRead);
+                relayed += bytesRead;
+            }
+        }
+        long expected = response.bodyLength();
+        if (expected >= 0 ? relayed != expected : relayed == 0) {
+            throw new IOException("Sharer closed the connection after " + relayed + " of "
+                    + (expected >= 0 ? expected : "an unknown number of") + " bytes");
+        }
+    }
+
+    private void sendRangeNotSatisfiable(HttpExchange exchange, long size) throws IOException {
+        exchange.getResponseHeaders().add("Content-Range", ByteRange.unsatisfiedContentRange(size));
+        responseHelper.sendErrorResponse(exchange, HttpStatus.RANGE_NOT_SATISFIABLE.code(), HttpStatus.RANGE_NOT_SATISFIABLE.reason());
+    }
+
+    /**
+     * Reply header of the sharer plus the connection its body is read from.
+     */
+    private static final class SharerResponse implements Closeable {
+        private final Socket socket;
+        private final InputStream body;
+        private final int status;
+        private final String fileName;
+        private final long size;
+        private final ByteRange range; // absolute range of the body, null when the whole file follows
+        private final String encoding; // compression applied by the sharer, null for raw bytes
+        private final String mimeType;
+        private final byte[] contentHash; // SHA-256 of the whole raw file, null for archives
+        private final long downloadToken; // sent back on follow-up requests of the same download
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private SharerResponse(Socket socket, InputStream body, TransferHeader header) {
+            this.socket = socket;
+            this.body = body;
+            this.status = header.status();
+            this.fileName = header.fileName();
+            this.size = header.size();
+            this.range = header.range();
+            this.encoding = header.encoding();
+            this.mimeType = header.mimeType();
+            this.contentHash = header.contentHash();
+            this.downloadToken = header.downloadToken();
+        }
+
+        private String contentType() {
+            return mimeType.isEmpty() ? "application/octet-stream" : mimeType;
+        }
+
+        /** Only single files of known size can be served in parts; archives are generated on the fly. */
+        private boolean supportsRanges() {
+            return size >= 0;
+        }
+
+        /**
+         * Stored file names are the SHA-256 of their content, so the name identifies it. A compressed
+         * body is a different representation and gets its own tag, which never matches If-Range.
+         */
+        private String entityTag() {
+            return "\"" + fileName + (encoding == null ? "" : "-" + encoding) + "\"";
+        }
+
+        private long bodyLength() {
+            if (encoding != null) {
+                return -1;
+            }
+            return range != null ? range.length() : size;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed.compareAndSet(false, true)) {
+                sharerConnections.decrement();
+            }
+            socket.close();
+        }
+
+        private void closeQuietly() {
+            try {
+                close();
+            } catch (IOException e) {
+                log.debug("Error closing sharer connection: {}", e.getMessage());
             }
         }
-        log.debug("File streaming completed for: {}", metadata.fileName());
     }
 }
@@ -1,97 +1,502 @@
 package com.banda.service;
 
-import com.banda.utils.UploadUtils;
+import com.banda.buffers.BufferPool;
+import com.banda.buffers.PooledBuffer;
+import com.banda.concurrent.ExecutionMode;
+import com.banda.concurrent.InstrumentedExecutor;
+import com.banda.metrics.Counter;
+import com.banda.metrics.MetricsRegistry;
+import com.banda.ratelimit.BandwidthPolicy;
+import com.banda.ratelimit.RateLimitedOutputStream;
+import com.banda.ratelimit.RateLimiter;
+import com.banda.ratelimit.TokenBucketPolicy;
+import com.banda.response.HttpStatus;
+import com.banda.utils.ByteRange;
+import com.banda.utils.FileExtensionHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.io.File;
-import java.io.FileInputStream;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
-public class Filesharer {
-    private HashMap<Integer, String> availableFiles;
+public class Filesharer implements Closeable {
+    public static final int DEFAULT_TRANSFER_PORT = 9090;
+    private static final Duration DRAIN_TIMEOUT = Duration.ofSeconds(30);
+    private final ShareRegistry shareRegistry;
+    private final TransferListener transferListener;
+    private final InstrumentedExecutor senderExecutor;
+    private final ContentCache contentCache;
+    private final MappedFiles mappedFiles;
+    private final BandwidthPolicy bandwidthPolicy;
     private static final Logger log = LoggerFactory.getLogger(Filesharer.class);
 
-    public Filesharer(){
-        availableFiles = new HashMap<>();
+    public Filesharer() throws IOException {
+        this(Settings.fromSystemProperties(Integer.getInteger("banda.transfer.port", DEFAULT_TRANSFER_PORT),
+                InstrumentedExecutor.create("banda-sender", ExecutionMode.fromSystemProperties(),
+                        Integer.getInteger("banda.transfer.threads", 32))));
     }
 
-    public int offerFile(String filePath) {
-        log.info("Offering file: {}", filePath);
-        int attempts = 0;
-        while(attempts < 10000) {
-            int port = UploadUtils.generateCode();
-            if (!availableFiles.containsKey(port)) {
-                availableFiles.put(port, filePath);
-                log.info("File {} offered on port: {}", port, filePath);
-                return port;
-            }
-            attempts++;
+    public Filesharer(Settings settings) throws IOException {
+        this.shareRegistry = settings.shareRegistry();
+        this.senderExecutor = settings.senderExecutor();
+        this.contentCache = settings.contentCache();
+        this.mappedFiles = settings.mappedFiles();
+        this.bandwidthPolicy = settings.bandwidthPolicy();
+        shareRegistry.getBlobStore().addDeletionListener(contentCache::invalidate);
+        if (mappedFiles != null) {
+            shareRegistry.getBlobStore().addDeletionListener(mappedFiles::invalidate);
         }
-        log.error("No available ports for file: {}", filePath);
-        //Todo handle this case appropriately
-        throw new RuntimeException("No available ports found");
+        transferListener = new TransferListener(settings.transferPort(), this::serve);
     }
 
-    public void startFileServer(int port){
-        log.info("Starting file server on port: {}", port);
-        String filePath = availableFiles.get(port);
-        if (filePath == null) {
-            log.error("No file associated with port: {}", port);
-            //TODO: Handle this  throw a custom exception or log an error
-            throw new IllegalArgumentException("No file associated with the given port: " + port);
+    /**
+     * What a {@link Filesharer} is built from.
+     *
+     * @param transferPort port of the single transfer endpoint, 0 picks an ephemeral port
+     * @param senderExecutor runs one task per download; drained by {@link Filesharer#close()}
+     * @param contentCache keeps hot file content in memory; cached copies are dropped when the registry deletes a file
+     * @param mappedFiles sends large files from shared memory mappings, or null to send them with {@code transferTo};
+     *                    a file is unmapped once the registry deletes it and its last download is done
+     * @param bandwidthPolicy paces every transfer, per share and per receiving address
+     */
+    public record Settings(int transferPort, InstrumentedExecutor senderExecutor, ShareRegistry shareRegistry,
+                           ContentCache contentCache, MappedFiles mappedFiles, BandwidthPolicy bandwidthPolicy) {
+        /**
+         * Share registry, content cache, send engine and bandwidth limits as configured by their system properties.
+         */
+        public static Settings fromSystemProperties(int transferPort, InstrumentedExecutor senderExecutor) {
+            return new Settings(transferPort, senderExecutor, ShareRegistry.fromSystemProperties(),
+                    ContentCache.fromSystemProperties(), MappedFiles.fromSystemProperties(),
+                    TokenBucketPolicy.fromSystemProperties("send"));
         }
-        try(ServerSocket serverSocket = new ServerSocket(port)) {
-            log.info("File server started on port: {} for file: {}", port, filePath);
-            Socket clientSocket = serverSocket.accept();
-            log.info("Client connected: {}", clientSocket.getInetAddress());
-            new Thread(new FileSenderHandler(clientSocket, filePath)).start();
+    }
+
+    public void start() {
+        transferListener.start();
+    }
+
+    public int getTransferPort() {
+        return transferListener.getPort();
+    }
+
+    public int offerFile(String filePath) {
+        return offerFiles(List.of(filePath));
+    }
 
-        } catch (Exception e) {
-            log.error("Error starting file server on port {}: {}", port, e.getMessage());
+    /**
+     * Offers a set of files under a single share code, each downloaded under the name of its own file.
+     */
+    public int offerFiles(List<String> filePaths) {
+        return offerFiles(filePaths, filePaths.stream().map(path -> Paths.get(path).getFileName().toString()).toList());
+    }
+
+    /**
+     * Offers a set of files under a single share code. A share with more than one file
+     * is sent to the downloader as a zip archive.
+     *
+     * @param fileNames names the files are downloaded as, one per path
+     */
+    public int offerFiles(List<String> filePaths, List<String> fileNames) {
+        log.info("Offering {} file(s): {} as {}", filePaths.size(), filePaths, fileNames);
+        int code = shareRegistry.register(filePaths, fileNames);
+        log.info("Files {} offered with code: {}", filePaths, code);
+        return code;
+    }
+
+    /**
+     * Sends the files of a share to a connection accepted by the transfer listener.
+     * Any number of downloads of the same share may run at once.
+     */
+    private void serve(TransferRequest request, SocketChannel clientChannel) {
+        int code = request.code();
+        Optional<ShareRegistry.Share> share = request.segment()
+                ? shareRegistry.acquireSegment(code, request.downloadToken())
+                : shareRegistry.acquire(code);
+        if (share.isEmpty()) {
+            log.warn("No file associated with code: {}", code);
+            senderExecutor.execute(() -> FileSenderHandler.rejectUnknownShare(clientChannel));
+            return;
+        }
+        log.info("Client connected for share {}", code);
+        // The peer is always the relay, so per-client limits go by the address it passes on
+        RateLimiter limiter = bandwidthPolicy.open(code, request.client());
+        FileSenderHandler sender = new FileSenderHandler(clientChannel, share.get().files(), share.get().fileNames(),
+                "share-" + code + ".zip",
+                new FileSenderHandler.Options(request.range(), request.compression(), contentCache, mappedFiles, limiter,
+                        share.get().downloadToken()));
+        try {
+            senderExecutor.execute(() -> {
+                try {
+                    sender.run();
+                } finally {
+                    limiter.close();
+                    shareRegistry.release(share.get());
+                }
+            });
+        } catch (RuntimeException e) {
+            limiter.close();
+            shareRegistry.release(share.get());
+            throw e;
+        }
+    }
+
+    public ShareRegistry getShareRegistry() {
+        return shareRegistry;
+    }
+
+    public ContentCache getContentCache() {
+        return contentCache;
+    }
+
+    /** The mmap send engine, or null when large files are sent with {@code transferTo}. */
+    public MappedFiles getMappedFiles() {
+        return mappedFiles;
+    }
+
+    public InstrumentedExecutor getSenderExecutor() {
+        return senderExecutor;
+    }
+
+    /**
+     * Stops accepting transfers and waits for downloads in flight to finish.
+     */
+    @Override
+    public void close() throws IOException {
+        transferListener.close();
+        log.info("Draining {} active and {} queued transfers", senderExecutor.activeCount(), senderExecutor.queuedCount());
+        senderExecutor.shutdownAndAwait(DRAIN_TIMEOUT);
+        // Shares live in memory only, so their files would be unreachable after a restart
+        shareRegistry.close();
+        if (mappedFiles != null) {
+            mappedFiles.close();
         }
     }
 
     public static class  FileSenderHandler implements Runnable {
-        private final Socket clientSocket;
-        private final String filePath;
+        private static final int FALLBACK_BUFFER_SIZE = 256 * 1024; // 256KB direct buffer when sendfile is unavailable
+        private static final int COMPRESSION_BUFFER_SIZE = 64 * 1024;
+        private static final Counter sentBytes = MetricsRegistry.getDefault().counter("banda_sender_bytes_total",
+                "Bytes written by the sharer to relay connections");
+        private final SocketChannel clientChannel;
+        private final List<String> filePaths;
+        private final List<String> fileNames;
+        private final String archiveName;
+        private final ByteRange range;
+        private final String compression;
+        private final ContentCache contentCache;
+        private final MappedFiles mappedFiles;
+        private final RateLimiter limiter;
+        private final long downloadToken;
+
+        /**
+         * @param fileNames names announced to the downloader, one per path; they also decide the MIME type
+         * @param archiveName name announced to the downloader when more than one file is sent as a zip
+         */
+        public FileSenderHandler(SocketChannel clientChannel, List<String> filePaths, List<String> fileNames,
+                                 String archiveName, Options options) {
+            this.clientChannel = clientChannel;
+            this.filePaths = filePaths;
+            this.fileNames = fileNames;
+            this.archiveName = archiveName;
+            this.range = options.range();
+            this.compression = options.compression();
+            this.contentCache = options.contentCache();
+            this.mappedFiles = options.mappedFiles();
+            this.limiter = options.limiter();
+            this.downloadToken = options.downloadToken();
+        }
 
-        public FileSenderHandler(Socket clientSocket, String filePath) {
-            this.clientSocket = clientSocket;
-            this.filePath = filePath;
+        /**
+         * How the files of one transfer are sent.
+         *
+         * @param range part of a single file to send, or null for all of it; archives are always sent whole
+         * @param compression encoding the downloader accepts, or null; only used for compressible single files,
+         *                    which are then sent whole and the range is ignored
+         * @param contentCache serves single files from memory when possible, null to always read the file
+         * @param mappedFiles sends large single files from a shared mapping, null to use {@code transferTo}
+         * @param limiter paces everything written to the connection; closed by the caller
+         * @param downloadToken announced in the reply header for the downloader's follow-up connections, 0 for none
+         */
+        public record Options(ByteRange range, String compression, ContentCache contentCache, MappedFiles mappedFiles,
+                              RateLimiter limiter, long downloadToken) {
         }
 
         @Override
         public void run() {
-            try(FileInputStream fis = new FileInputStream(filePath)) {
-                log.debug("Sending file: {} to client: {}", filePath, clientSocket.getInetAddress());
-                OutputStream outputStream = clientSocket.getOutputStream();
-                String fileName = new File(filePath).getName();
-                String header = "Filename: " + fileName + "\n";
-                log.debug("Sending header: {}", header);
-                outputStream.write(header.getBytes());
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    outputStream.write(buffer, 0, bytesRead);
-                }
-                log.info("Sending file: {} to client: {}", filePath, clientSocket.getInetAddress());
+            String client = String.valueOf(clientChannel.socket().getInetAddress());
+            long startNanos = System.nanoTime();
+            try {
+                log.debug("Sending files: {} to client: {}", filePaths, client);
+                long bytesSent = filePaths.size() == 1
+                        ? sendFile(filePaths.get(0), fileNames.get(0))
+                        : sendArchive();
+                sentBytes.add(bytesSent);
+                long elapsedNanos = Math.max(1, System.nanoTime() - startNanos);
+                log.info("Sent files: {} to client: {} - {} bytes in {} ms ({} bytes/s)",
+                        filePaths, client, bytesSent, TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                        bytesSent * TimeUnit.SECONDS.toNanos(1) / elapsedNanos);
             }catch (IOException e){
-                log.error("Error sending file: {} to client: {} - {}", filePath, clientSocket.getInetAddress(), e.getMessage());
+                log.error("Error sending files: {} to client: {} - {}", filePaths, client, e.getMessage());
             }finally {
                 try {
-                    clientSocket.close();
+                    clientChannel.close();
                 } catch (IOException e) {
-                    log.error("Error closing client socket: {} - {}", clientSocket.getInetAddress(), e.getMessage());
+                    log.error("Error closing client socket: {} - {}", client, e.getMessage());
                 }
             }
         }
 
-    }
-}
+        /**
+         * Tells the downloader that the requested share does not exist.
+         */
+        static void rejectUnknownShare(SocketChannel clientChannel) {
+            try (clientChannel) {
+                ByteBuffer reply = TransferProtocol.encodeHeader(TransferHeader.notFound());
+                while (reply.hasRemaining()) {
+                    clientChannel.write(reply);
+                }
+            } catch (IOException e) {
+                log.debug("Error rejecting unknown share: {}", e.getMessage());
+            }
+        }
+
+        private long sendFile(String filePath, String fileName) throws IOException {
+            Path path = Paths.get(filePath);
+            String encoding = compression != null && FileExtensionHelper.isCompressible(fileName) ? compression : null;
+            ContentCache.Entry cached = contentCache == null ? null : contentCache.get(path, encoding);
+            if (cached != null && (encoding != null || cached.isComplete())) {
+                // Served from memory, the upload directory is not touched
+                return encoding != null
+                        ? sendCompressedBytes(fileName, cached.fileSize(), cached.data())
+                        : sendRange(path, fileName, null, cached.fileSize(), cached);
+            }
+            try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = fileChannel.size();
+                if (encoding != null) {
+                    return sendCompressed(path, fileChannel, fileName, size);
+                }
+                if (cached == null && contentCache != null) {
+                    cached = contentCache.load(path, fileChannel, size);
+                }
+                return sendRange(path, fileName, fileChannel, size, cached);
+            }
+        }
 
+        /**
+         * Sends the requested range, taking the bytes the cache holds from memory and the rest from the file.
+         *
+         * @param fileChannel the open file, may be null when {@code cached} holds all of it
+         * @param cached the cached start of the file, or null
+         */
+        private long sendRange(Path path, String fileName, FileChannel fileChannel, long size, ContentCache.Entry cached)
+                throws IOException {
+            ByteRange served = range == null ? new ByteRange(0, size - 1) : range.resolve(size);
+            if (served == null) {
+                writeFully(TransferProtocol.encodeHeader(TransferHeader.rangeNotSatisfiable(size, downloadToken)));
+                return 0;
+            }
+            writeHeader(fileName, size, range == null ? null : served, null);
+            long position = served.first();
+            long end = served.last() + 1;
+            if (cached != null && position < cached.data().remaining()) {
+                int cachedEnd = (int) Math.min(end, cached.data().remaining());
+                writeFully(cached.data().slice((int) position, cachedEnd - (int) position));
+                position = cachedEnd;
+            }
+            if (position < end && mappedFiles != null && mappedFiles.shouldMap(size)) {
+                MappedFiles.Mapping mapping = mappedFiles.acquire(path, fileChannel);
+                try {
+                    while (position < end) {
+                        long next = position + limiter.acquire(end - position);
+                        mapping.writeTo(clientChannel, position, next);
+                        position = next;
+                    }
+                } finally {
+                    mapping.release();
+                }
+                return end - served.first();
+            }
+            // Position straight at the requested offset, nothing before it is read
+            while (position < end) {
+                long transferred;
+                try {
+                    transferred = fileChannel.transferTo(position, limiter.acquire(end - position), clientChannel);
+                } catch (UnsupportedOperationException e) {
+                    transferred = 0;
+                }
+                if (transferred <= 0) {
+                    // No progress from the zero-copy path, finish with a plain buffered copy
+                    log.debug("transferTo made no progress for {}, falling back to buffered copy", fileName);
+                    return copyWithDirectBuffer(fileChannel, position, end) - served.first();
+                }
+                position += transferred;
+            }
+            return end - served.first();
+        }
+
+        /**
+         * Sends the whole file through gzip or zlib deflate at the fastest level; the body ends
+         * when the connection closes, so only its uncompressed size is announced. Files small
+         * enough are compressed in memory once and the result is cached for later downloads.
+         */
+        private long sendCompressed(Path path, FileChannel fileChannel, String fileName, long size) throws IOException {
+            if (contentCache != null && size <= contentCache.maxCompressSource()) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream((int) Math.min(size, COMPRESSION_BUFFER_SIZE));
+                compress(fileChannel, compressed);
+                byte[] body = compressed.toByteArray();
+                ContentCache.Entry cached = contentCache.putCompressed(path, compression, body, body.length, size);
+                return sendCompressedBytes(fileName, size, cached != null ? cached.data() : ByteBuffer.wrap(body));
+            }
+            writeHeader(fileName, size, null, compression);
+            // Do not close the compressing stream, the channel is closed by run()
+            CountingOutputStream counter = new CountingOutputStream(
+                    new RateLimitedOutputStream(Channels.newOutputStream(clientChannel), limiter));
+            compress(fileChannel, counter);
+            log.debug("Compressed {} from {} to {} bytes with {}", fileName, size, counter.getByteCount(), compression);
+            return counter.getByteCount();
+        }
+
+        private long sendCompressedBytes(String fileName, long size, ByteBuffer compressed) throws IOException {
+            writeHeader(fileName, size, null, compression);
+            int length = compressed.remaining();
+            writeFully(compressed);
+            return length;
+        }
 
+        private void compress(FileChannel fileChannel, OutputStream target) throws IOException {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED, compression.equals("gzip"));
+            try {
+                DeflaterOutputStream out = compression.equals("gzip")
+                        ? new GzipStream(target, deflater)
+                        : new DeflaterOutputStream(target, deflater, COMPRESSION_BUFFER_SIZE);
+                try (PooledBuffer input = BufferPool.heap().acquire(COMPRESSION_BUFFER_SIZE)) {
+                    ByteBuffer buffer = input.buffer();
+                    while (fileChannel.read(buffer) != -1) {
+                        out.write(input.array(), 0, buffer.position());
+                        buffer.clear().limit(input.capacity());
+                    }
+                }
+                out.finish();
+                out.flush();
+            } finally {
+                deflater.end();
+            }
+        }
 
+        private long copyWithDirectBuffer(FileChannel fileChannel, long position, long end) throws IOException {
+            try (PooledBuffer pooled = BufferPool.direct().acquire(FALLBACK_BUFFER_SIZE)) {
+                ByteBuffer buffer = pooled.buffer();
+                while (position < end) {
+                    buffer.limit((int) Math.min(pooled.capacity(), end - position));
+                    int read = fileChannel.read(buffer, position);
+                    if (read == -1) {
+                        break;
+                    }
+                    position += read;
+                    buffer.flip();
+                    writeFully(buffer);
+                    buffer.clear();
+                }
+                return position;
+            }
+        }
+
+        private long sendArchive() throws IOException {
+            // The archive is built on the fly, so its size is not known up front and ranges are ignored
+            writeHeader(archiveName, -1, null, null);
+            // Do not close the zip stream, the channel is closed by run()
+            CountingOutputStream counter = new CountingOutputStream(
+                    new RateLimitedOutputStream(Channels.newOutputStream(clientChannel), limiter));
+            ZipOutputStream zip = new ZipOutputStream(counter);
+            zip.setLevel(Deflater.BEST_SPEED);
+            Set<String> entryNames = new HashSet<>();
+            try (PooledBuffer pooled = BufferPool.heap().acquire(COMPRESSION_BUFFER_SIZE)) {
+                for (int i = 0; i < filePaths.size(); i++) {
+                    Path path = Paths.get(filePaths.get(i));
+                    zip.putNextEntry(new ZipEntry(uniqueEntryName(fileNames.get(i), entryNames)));
+                    try (InputStream in = Files.newInputStream(path)) {
+                        int read;
+                        while ((read = in.read(pooled.array(), 0, pooled.capacity())) != -1) {
+                            zip.write(pooled.array(), 0, read);
+                        }
+                    }
+                    zip.closeEntry();
+                }
+            }
+            zip.finish();
+            zip.flush();
+            return counter.getByteCount();
+        }
+
+        /**
+         * Names come from the uploads, so two files in one share may be called the same.
+         */
+        private static String uniqueEntryName(String name, Set<String> used) {
+            String candidate = name;
+            for (int copy = 1; !used.add(candidate); copy++) {
+                candidate = FilenameUtils.getBaseName(name) + "-" + copy
+                        + (FilenameUtils.getExtension(name).isEmpty() ? "" : "." + FilenameUtils.getExtension(name));
+            }
+            return candidate;
+        }
+
+        /**
+         * @param served absolute range that follows the header, or null when the whole file follows
+         * @param encoding compression applied to the body, or null for raw bytes
+         */
+        private void writeHeader(String fileName, long size, ByteRange served, String encoding) throws IOException {
+            // Archives are new content on every download, only a stored file carries its hash
+            byte[] contentHash = filePaths.size() == 1 ? BlobStore.contentHash(Paths.get(filePaths.get(0))) : null;
+            HttpStatus status = served == null ? HttpStatus.OK : HttpStatus.PARTIAL_CONTENT;
+            log.debug("Sending header: {} {} size {} range {} encoding {}", status.code(), fileName, size, served, encoding);
+            writeFully(TransferProtocol.encodeHeader(new TransferHeader(status.code(), fileName, size, served, encoding,
+                    FileExtensionHelper.mimeTypeOf(fileName), contentHash, downloadToken)));
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            int limit = buffer.limit();
+            while (buffer.hasRemaining()) {
+                buffer.limit(buffer.position() + (int) limiter.acquire(buffer.remaining()));
+                while (buffer.hasRemaining()) {
+                    clientChannel.write(buffer);
+                }
+                buffer.limit(limit);
+            }
+        }
+
+        /**
+         * GZIPOutputStream always deflates at the default level; this one takes our own raw deflater.
+         */
+        private static final class GzipStream extends GZIPOutputStream {
+            private GzipStream(OutputStream out, Deflater deflater) throws IOException {
+                super(out, COMPRESSION_BUFFER_SIZE);
+                def.end();
+                def = deflater;
+            }
+        }
+    }
+}
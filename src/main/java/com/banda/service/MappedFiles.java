@@ -0,0 +1,208 @@
+package com.banda.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Alternative send engine: read-only memory mappings of large shared files, one per file and
+ * shared by every download reading it, so concurrent readers all work from the page cache
+ * instead of their own buffers.
+ * <p>
+ * Mappings are released deterministically: a file's mapping is unmapped once it has been
+ * invalidated (the file was deleted when its share went away) and the last download using it
+ * has finished. Java 21 has no supported way to unmap a {@link MappedByteBuffer} (the
+ * {@code Arena} API is still a preview), so this goes through {@code Unsafe.invokeCleaner}.
+ */
+public class MappedFiles implements Closeable {
+    private static final long REGION_SIZE = 1L << 30; // a MappedByteBuffer is int-indexed, map in 1 GiB regions
+    private static final Logger log = LoggerFactory.getLogger(MappedFiles.class);
+
+    private final ConcurrentHashMap<Path, Mapping> mappings = new ConcurrentHashMap<>();
+    private final long threshold;
+
+    /**
+     * @param threshold files at least this large are sent from a mapping
+     */
+    public MappedFiles(long threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * @return the engine, or null unless {@code banda.send.engine=mmap}; files from
+     *         {@code banda.mmap.threshold} bytes (8 MiB) on are mapped
+     */
+    public static MappedFiles fromSystemProperties() {
+        if (!"mmap".equals(System.getProperty("banda.send.engine"))) {
+            return null;
+        }
+        return new MappedFiles(Long.getLong("banda.mmap.threshold", 8L * 1024 * 1024));
+    }
+
+    public boolean shouldMap(long fileSize) {
+        return fileSize >= threshold;
+    }
+
+    /**
+     * Returns the shared mapping of a file, mapping it on first use. Every call must be paired
+     * with {@link Mapping#release()} once the bytes have been written.
+     */
+    public Mapping acquire(Path file, FileChannel channel) throws IOException {
+        try {
+            while (true) {
+                Mapping mapping = mappings.computeIfAbsent(file, path -> map(path, channel));
+                if (mapping.retain()) {
+                    return mapping;
+                }
+                // Invalidated between lookup and retain, map it again
+                mappings.remove(file, mapping);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /** Drops a file's mapping, called when the file is deleted; downloads still writing from it finish first. */
+    public void invalidate(Path file) {
+        Mapping mapping = mappings.remove(file);
+        if (mapping != null) {
+            mapping.invalidate();
+        }
+    }
+
+    public int mappedCount() {
+        return mappings.size();
+    }
+
+    @Override
+    public void close() {
+        for (Path file : mappings.keySet()) {
+            invalidate(file);
+        }
+    }
+
+    private static Mapping map(Path file, FileChannel channel) {
+        try {
+            long size = channel.size();
+            MappedByteBuffer[] regions = new MappedByteBuffer[(int) ((size + REGION_SIZE - 1) / REGION_SIZE)];
+            for (int i = 0; i < regions.length; i++) {
+                long offset = i * REGION_SIZE;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(REGION_SIZE, size - offset));
+            }
+            log.debug("Mapped {} ({} bytes, {} region(s))", file.getFileName(), size, regions.length);
+            return new Mapping(file, regions);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static final class Mapping {
+        private final Path file;
+        private final MappedByteBuffer[] regions;
+        // One reference belongs to the registry until the mapping is invalidated
+        private final AtomicInteger references = new AtomicInteger(1);
+        private final AtomicBoolean invalidated = new AtomicBoolean();
+
+        private Mapping(Path file, MappedByteBuffer[] regions) {
+            this.file = file;
+            this.regions = regions;
+        }
+
+        /**
+         * Writes {@code [position, end)} of the file to the channel straight from the mapping.
+         */
+        public void writeTo(WritableByteChannel channel, long position, long end) throws IOException {
+            while (position < end) {
+                int region = (int) (position / REGION_SIZE);
+                int offset = (int) (position % REGION_SIZE);
+                int length = (int) Math.min(end - position, regions[region].capacity() - offset);
+                ByteBuffer slice = regions[region].slice(offset, length);
+                while (slice.hasRemaining()) {
+                    channel.write(slice);
+                }
+                position += length;
+            }
+        }
+
+        public void release() {
+            if (references.decrementAndGet() == 0) {
+                unmap();
+            }
+        }
+
+        private boolean retain() {
+            int current;
+            do {
+                current = references.get();
+                if (current == 0) {
+                    return false;
+                }
+            } while (!references.compareAndSet(current, current + 1));
+            return true;
+        }
+
+        private void invalidate() {
+            if (invalidated.compareAndSet(false, true)) {
+                release();
+            }
+        }
+
+        private void unmap() {
+            for (MappedByteBuffer region : regions) {
+                Cleaner.unmap(region);
+            }
+            log.debug("Unmapped {}", file.getFileName());
+        }
+    }
+
+    /**
+     * Frees a mapping right away instead of waiting for the garbage collector. Without access to
+     * {@code Unsafe} the mapping is left to the collector, which is safe but late. Looked up
+     * reflectively so the build does not depend on the internal class.
+     */
+    private static final class Cleaner {
+        private static final MethodHandle INVOKE_CLEANER = findInvokeCleaner();
+
+        private static MethodHandle findInvokeCleaner() {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                return MethodHandles.lookup()
+                        .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                        .bindTo(field.get(null));
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                log.warn("Cannot unmap files eagerly, mappings are freed by the garbage collector: {}", e.getMessage());
+                return null;
+            }
+        }
+
+        private static void unmap(MappedByteBuffer buffer) {
+            if (INVOKE_CLEANER == null) {
+                return;
+            }
+            try {
+                INVOKE_CLEANER.invokeExact((ByteBuffer) buffer);
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable e) {
+                log.warn("Could not unmap a mapping, the garbage collector will: {}", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.banda.service;
+
+import com.banda.buffers.BufferPool;
+import com.banda.buffers.PooledBuffer;
+import com.banda.metrics.Gauge;
+import com.banda.metrics.MetricsRegistry;
+import com.banda.utils.ByteRange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pulls a large byte range from the sharer over several connections at once, one segment per
+ * connection, and writes the segments to the client strictly in order.
+ * <p>
+ * At most {@code connections} segments are fetched or buffered ahead of the writer. The
+ * connection count starts at two and climbs while each step up still improves measured
+ * throughput, backing off when it gets worse.
+ * <p>
+ * Segments are read into buffers borrowed from the heap {@link BufferPool} and handed back once
+ * written, so a busy relay does not allocate per byte it forwards. The bytes buffered ahead of
+ * the writers of all downloads together are capped by {@code maxBufferedBytes}: once the budget
+ * is spent a download fetches no further segments ahead, and one that has none in flight streams
+ * its next segment straight through a small buffer instead.
+ */
+final class SegmentedFetcher {
+    private static final int INITIAL_CONNECTIONS = 2;
+    private static final double ADAPT_THRESHOLD = 0.10; // 10% change in throughput before adjusting
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final Logger log = LoggerFactory.getLogger(SegmentedFetcher.class);
+    private static final Gauge bufferedBytes = MetricsRegistry.getDefault().gauge("banda_segment_buffered_bytes",
+            "Bytes of download segments fetched or being fetched ahead of the client");
+
+    /**
+     * Opens a connection that yields exactly the bytes of an absolute range.
+     */
+    interface SegmentOpener {
+        InputStream open(ByteRange range) throws IOException;
+    }
+
+    private final Executor executor;
+    private final int segmentSize;
+    private final int maxConnections;
+    private final long maxBufferedBytes;
+    private final AtomicLong reservedBytes = new AtomicLong();
+
+    /**
+     * @param maxBufferedBytes segment bytes all downloads together may hold ahead of their clients
+     */
+    SegmentedFetcher(Executor executor, int segmentSize, int maxConnections, long maxBufferedBytes) {
+        this.executor = executor;
+        this.segmentSize = segmentSize;
+        this.maxConnections = Math.max(1, maxConnections);
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    int segmentSize() {
+        return segmentSize;
+    }
+
+    void fetch(ByteRange range, SegmentOpener opener, OutputStream out) throws IOException {
+        Deque<CompletableFuture<PooledBuffer>> inFlight = new ArrayDeque<>();
+        int connections = Math.min(INITIAL_CONNECTIONS, maxConnections);
+        long next = range.first();
+        long end = range.last() + 1;
+
+        long sampleStart = System.nanoTime();
+        long sampleBytes = 0;
+        int sampleSegments = 0;
+        double lastRate = 0;
+        try {
+            while (next < end || !inFlight.isEmpty()) {
+                while (inFlight.size() < connections && next < end) {
+                    ByteRange segment = new ByteRange(next, Math.min(end, next + segmentSize) - 1);
+                    if (!reserve(segment.length())) {
+                        break;
+                    }
+                    inFlight.add(fetchAsync(opener, segment));
+                    next = segment.last() + 1;
+                }
+                long length;
+                if (inFlight.isEmpty()) {
+                    // Out of buffer budget with nothing ahead: this segment goes through without buffering
+                    ByteRange segment = new ByteRange(next, Math.min(end, next + segmentSize) - 1);
+                    stream(opener, segment, out);
+                    next = segment.last() + 1;
+                    length = segment.length();
+                } else {
+                    try (PooledBuffer segment = await(inFlight.poll())) {
+                        length = segment.capacity();
+                        try {
+                            out.write(segment.array(), 0, segment.capacity());
+                        } finally {
+                            release(length);
+                        }
+                    }
+                }
+
+                sampleBytes += length;
+                if (++sampleSegments >= connections) {
+                    double rate = sampleBytes / (double) Math.max(1, System.nanoTime() - sampleStart);
+                    int previous = connections;
+                    if (rate > lastRate * (1 + ADAPT_THRESHOLD) && connections < maxConnections) {
+                        connections++;
+                    } else if (rate < lastRate * (1 - ADAPT_THRESHOLD) && connections > 1) {
+                        connections--;
+                    }
+                    if (connections != previous) {
+                        log.debug("Segmented fetch of {} now uses {} connections", range, connections);
+                    }
+                    lastRate = rate;
+                    sampleStart = System.nanoTime();
+                    sampleBytes = 0;
+                    sampleSegments = 0;
+                }
+            }
+        } finally {
+            for (CompletableFuture<PooledBuffer> pending : inFlight) {
+                // Fetches not started yet are skipped, running ones hand their buffer back when done
+                pending.cancel(false);
+                pending.thenAccept(segment -> {
+                    release(segment.capacity());
+                    segment.close();
+                });
+            }
+        }
+    }
+
+    /**
+     * Claims buffer budget for a segment about to be fetched ahead of the writer.
+     */
+    private boolean reserve(long length) {
+        long reserved;
+        do {
+            reserved = reservedBytes.get();
+            if (reserved + length > maxBufferedBytes) {
+                return false;
+            }
+        } while (!reservedBytes.compareAndSet(reserved, reserved + length));
+        bufferedBytes.add(length);
+        return true;
+    }
+
+    private void release(long length) {
+        reservedBytes.addAndGet(-length);
+        bufferedBytes.add(-length);
+    }
+
+    /**
+     * Starts fetching a segment whose length is already reserved; the future yields a buffer
+     * holding exactly its bytes. Whoever takes that buffer releases the reservation, otherwise
+     * the fetch releases it itself.
+     */
+    private CompletableFuture<PooledBuffer> fetchAsync(SegmentOpener opener, ByteRange segment) {
+        CompletableFuture<PooledBuffer> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            if (future.isCancelled()) {
+                release(segment.length());
+                return;
+            }
+            try {
+                PooledBuffer data = readSegment(opener, segment);
+                if (!future.complete(data)) {
+                    release(segment.length()); // cancelled while reading
+                    data.close();
+                }
+            } catch (IOException e) {
+                release(segment.length());
+                future.completeExceptionally(new SegmentFetchException(e));
+            } catch (RuntimeException e) {
+                release(segment.length());
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Copies a segment straight from the sharer to the client, holding only a relay-sized buffer.
+     */
+    private static void stream(SegmentOpener opener, ByteRange segment, OutputStream out) throws IOException {
+        long length = segment.length();
+        long copied = 0;
+        try (InputStream in = opener.open(segment);
+             PooledBuffer buffer = BufferPool.heap().acquire(STREAM_BUFFER_SIZE)) {
+            byte[] bytes = buffer.array();
+            int read;
+            while (copied < length
+                    && (read = in.read(bytes, 0, (int) Math.min(buffer.capacity(), length - copied))) != -1) {
+                out.write(bytes, 0, read);
+                copied += read;
+            }
+        }
+        if (copied != length) {
+            throw new IOException("Sharer closed the connection after " + copied + " of " + length
+                    + " bytes of segment " + segment);
+        }
+    }
+
+    private static PooledBuffer readSegment(SegmentOpener opener, ByteRange segment) throws IOException {
+        int length = (int) segment.length();
+        PooledBuffer data = BufferPool.heap().acquire(length);
+        try (InputStream in = opener.open(segment)) {
+            int read = in.readNBytes(data.array(), 0, length);
+            if (read != length) {
+                throw new IOException("Sharer closed the connection after " + read + " of " + length
+                        + " bytes of segment " + segment);
+            }
+            return data;
+        } catch (IOException | RuntimeException e) {
+            data.close();
+            throw e;
+        }
+    }
+
+    private static PooledBuffer await(CompletableFuture<PooledBuffer> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a segment", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SegmentFetchException fetchException) {
+                throw fetchException.getCause();
+            }
+            throw new IOException("Segment fetch failed", e.getCause());
+        }
+    }
+
+    private static final class SegmentFetchException extends RuntimeException {
+        private SegmentFetchException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
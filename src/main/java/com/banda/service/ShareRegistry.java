@@ -0,0 +1,349 @@
+package com.banda.service;
+
+import com.banda.utils.UploadUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent map of share code to shared files. Shares expire after a TTL or a number of
+ * downloads, and the registry holds at most {@code maxShares}; evicting a share releases its
+ * files to the {@link BlobStore} once no download is still reading them.
+ * <p>
+ * A download may fetch its segments over several connections. Only the first one counts
+ * against the download limit, so a share that used up its last download stays registered
+ * until it has been idle for a grace period and the next sweep evicts it. The first
+ * connection learns the share's download token, and the others must present it, so a
+ * segment can only belong to a download that was counted.
+ */
+public class ShareRegistry implements Closeable {
+    private static final Duration SWEEP_INTERVAL = Duration.ofMinutes(1);
+    private static final Duration SEGMENT_GRACE = Duration.ofSeconds(30);
+    private static final int MAX_CODE_ATTEMPTS = 10000;
+    private static final SecureRandom tokens = new SecureRandom();
+    private static final Logger log = LoggerFactory.getLogger(ShareRegistry.class);
+
+    private final ConcurrentHashMap<Integer, Share> shares = new ConcurrentHashMap<>();
+    // The same shares ordered by expiry, so the next one to go is found without a scan
+    private final ConcurrentSkipListSet<Share> byExpiry = new ConcurrentSkipListSet<>(
+            Comparator.<Share>comparingLong(share -> share.expiresAtNanos).thenComparingInt(share -> share.code));
+    private final Duration ttl;
+    private final int maxDownloads;
+    private final int maxShares;
+    private final BlobStore blobStore;
+    private final ScheduledExecutorService sweeper;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final Map<EvictionReason, LongAdder> evictions = new EnumMap<>(EvictionReason.class);
+
+    /**
+     * @param ttl how long a share stays downloadable
+     * @param maxDownloads downloads allowed per share, 0 for unlimited
+     * @param maxShares registry size cap; the share closest to expiry is evicted to make room
+     */
+    public ShareRegistry(Duration ttl, int maxDownloads, int maxShares) {
+        this(ttl, maxDownloads, maxShares, new BlobStore());
+    }
+
+    /**
+     * @param blobStore store the shared files came from; evicted shares give their files back to it
+     */
+    public ShareRegistry(Duration ttl, int maxDownloads, int maxShares, BlobStore blobStore) {
+        this.ttl = ttl;
+        for (EvictionReason reason : EvictionReason.values()) {
+            evictions.put(reason, new LongAdder());
+        }
+        this.maxDownloads = maxDownloads;
+        this.maxShares = maxShares;
+        this.blobStore = blobStore;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("banda-share-sweeper").daemon().factory());
+        this.sweeper.scheduleWithFixedDelay(this::evictExpired,
+                SWEEP_INTERVAL.toMillis(), SWEEP_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public static ShareRegistry fromSystemProperties() {
+        return fromSystemProperties(new BlobStore());
+    }
+
+    public static ShareRegistry fromSystemProperties(BlobStore blobStore) {
+        return new ShareRegistry(
+                Duration.ofSeconds(Long.getLong("banda.share.ttl.seconds", TimeUnit.HOURS.toSeconds(24))),
+                Integer.getInteger("banda.share.max.downloads", 0),
+                Integer.getInteger("banda.share.max.count", 10000),
+                blobStore);
+    }
+
+    /**
+     * Registers files under a fresh share code.
+     *
+     * @param fileNames names the files are downloaded as, one per path; stored blobs are named by
+     *                  their content and may be shared with uploads that called them something else
+     */
+    public int register(List<String> filePaths, List<String> fileNames) {
+        if (filePaths.size() != fileNames.size()) {
+            throw new IllegalArgumentException(filePaths.size() + " files but " + fileNames.size() + " names");
+        }
+        if (shares.size() >= maxShares) {
+            makeRoom();
+        }
+        List<String> files = List.copyOf(filePaths);
+        List<String> names = List.copyOf(fileNames);
+        long expiresAt = System.nanoTime() + ttl.toNanos();
+        for (int attempts = 0; attempts < MAX_CODE_ATTEMPTS; attempts++) {
+            int code = UploadUtils.generateCode();
+            Share share = new Share(code, files, names, expiresAt, newDownloadToken());
+            if (shares.putIfAbsent(code, share) == null) {
+                // An eviction racing this may leave the entry behind; it is dropped when it reaches the head
+                byExpiry.add(share);
+                return code;
+            }
+        }
+        //Todo handle this case appropriately
+        throw new RuntimeException("No available share codes found");
+    }
+
+    /**
+     * Looks up a share for a download. Every successful call must be paired with {@link #release(Share)}
+     * once the transfer has finished, so the files are not deleted while they are being read.
+     */
+    public Optional<Share> acquire(int code) {
+        Share share = shares.get(code);
+        if (share == null) {
+            misses.increment();
+            return Optional.empty();
+        }
+        if (share.isExpired(System.nanoTime())) {
+            evict(share, EvictionReason.EXPIRED);
+            misses.increment();
+            return Optional.empty();
+        }
+        int download = share.downloads.incrementAndGet();
+        if (maxDownloads > 0 && download > maxDownloads) {
+            misses.increment();
+            return Optional.empty();
+        }
+        share.active.incrementAndGet();
+        if (share.evicted) {
+            // Lost a race with eviction
+            release(share);
+            misses.increment();
+            return Optional.empty();
+        }
+        hits.increment();
+        return Optional.of(share);
+    }
+
+    /**
+     * Looks up a share for one more segment of a download that {@link #acquire(int)} already
+     * admitted. Segments do not count as downloads, but need the share to still be registered
+     * and the token handed to that download. Must be paired with {@link #release(Share)} like
+     * any other acquire.
+     */
+    public Optional<Share> acquireSegment(int code, long downloadToken) {
+        Share share = shares.get(code);
+        if (share == null || share.isExpired(System.nanoTime())) {
+            return Optional.empty();
+        }
+        if (downloadToken != share.downloadToken || share.downloads.get() == 0) {
+            log.warn("Refusing a segment of share {} that no counted download asked for", code);
+            return Optional.empty();
+        }
+        share.active.incrementAndGet();
+        if (share.evicted) {
+            release(share);
+            return Optional.empty();
+        }
+        return Optional.of(share);
+    }
+
+    public void release(Share share) {
+        share.lastReleasedNanos = System.nanoTime();
+        if (share.active.decrementAndGet() == 0 && share.evicted) {
+            releaseFiles(share);
+        }
+    }
+
+    public BlobStore getBlobStore() {
+        return blobStore;
+    }
+
+    public int size() {
+        return shares.size();
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long evictionCount(EvictionReason reason) {
+        return evictions.get(reason).sum();
+    }
+
+    private static long newDownloadToken() {
+        long token;
+        do {
+            token = tokens.nextLong();
+        } while (token == 0);
+        return token;
+    }
+
+    void evictExpired() {
+        long now = System.nanoTime();
+        for (Share share : byExpiry) {
+            if (!share.isExpired(now)) {
+                break;
+            }
+            byExpiry.remove(share);
+            evict(share, EvictionReason.EXPIRED);
+        }
+        if (maxDownloads == 0) {
+            return;
+        }
+        for (Share share : shares.values()) {
+            if (isExhausted(share) && share.active.get() == 0
+                    && now - share.lastReleasedNanos >= SEGMENT_GRACE.toNanos()) {
+                evict(share, EvictionReason.DOWNLOAD_LIMIT);
+            }
+        }
+    }
+
+    private boolean isExhausted(Share share) {
+        return maxDownloads > 0 && share.downloads.get() >= maxDownloads;
+    }
+
+    /**
+     * Evicts the shares closest to expiry until there is room for one more. Shares that used up
+     * their downloads are left to the sweeper, finding them would take a scan of the registry.
+     */
+    private void makeRoom() {
+        while (shares.size() >= maxShares) {
+            Share oldest = byExpiry.pollFirst();
+            if (oldest == null) {
+                return;
+            }
+            evict(oldest, oldest.isExpired(System.nanoTime()) ? EvictionReason.EXPIRED : EvictionReason.REGISTRY_FULL);
+        }
+    }
+
+    private void evict(Share share, EvictionReason reason) {
+        if (!shares.remove(share.code, share)) {
+            return;
+        }
+        byExpiry.remove(share);
+        share.evicted = true;
+        evictions.get(reason).increment();
+        log.info("Evicting share {} ({})", share.code, reason.description);
+        if (share.active.get() == 0) {
+            releaseFiles(share);
+        }
+    }
+
+    private void releaseFiles(Share share) {
+        if (!share.released.compareAndSet(false, true)) {
+            return;
+        }
+        for (String file : share.files) {
+            blobStore.release(Paths.get(file));
+        }
+    }
+
+    /**
+     * Evicts every share and releases its files; downloads still running keep their files until released.
+     */
+    @Override
+    public void close() {
+        sweeper.shutdownNow();
+        for (Share share : shares.values()) {
+            evict(share, EvictionReason.SHUTDOWN);
+        }
+    }
+
+    /**
+     * Why a share was dropped.
+     */
+    public enum EvictionReason {
+        EXPIRED("expired", "expired"),
+        DOWNLOAD_LIMIT("download_limit", "download limit reached"),
+        REGISTRY_FULL("registry_full", "registry full"),
+        SHUTDOWN("shutdown", "shutdown");
+
+        private final String label;
+        private final String description;
+
+        EvictionReason(String label, String description) {
+            this.label = label;
+            this.description = description;
+        }
+
+        /** Value of the {@code reason} metrics label. */
+        public String label() {
+            return label;
+        }
+    }
+
+    public static final class Share {
+        private final int code;
+        private final List<String> files;
+        private final List<String> fileNames;
+        private final long expiresAtNanos;
+        private final long downloadToken;
+        private final AtomicInteger downloads = new AtomicInteger();
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile boolean evicted;
+        private volatile long lastReleasedNanos;
+
+        private Share(int code, List<String> files, List<String> fileNames, long expiresAtNanos, long downloadToken) {
+            this.code = code;
+            this.files = files;
+            this.fileNames = fileNames;
+            this.expiresAtNanos = expiresAtNanos;
+            this.downloadToken = downloadToken;
+        }
+
+        public int code() {
+            return code;
+        }
+
+        public List<String> files() {
+            return files;
+        }
+
+        /** Names the files are downloaded as, in the order of {@link #files()}. */
+        public List<String> fileNames() {
+            return fileNames;
+        }
+
+        /** Sent to each admitted download, which presents it again to fetch further segments. */
+        public long downloadToken() {
+            return downloadToken;
+        }
+
+        private boolean isExpired(long now) {
+            return now - expiresAtNanos >= 0;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.banda.service;
+
+import com.banda.response.HttpStatus;
+import com.banda.utils.ByteRange;
+
+/**
+ * What the sharer sends ahead of the body of a transfer.
+ *
+ * @param status 200 for the whole file, 206 for {@code range}, 404 for an unknown share, 416 for an unsatisfiable range
+ * @param fileName stored name of the file, or of the archive for a multi-file share
+ * @param size raw size of the file, or -1 when unknown (archives are built on the fly)
+ * @param range absolute range of the file that follows, or null when the whole file follows
+ * @param encoding compression applied to the body ({@code gzip} or {@code deflate}), or null for raw bytes
+ * @param mimeType detected type of the file
+ * @param contentHash SHA-256 of the whole raw file, or null when not known
+ * @param downloadToken what follow-up connections of this download must send to be let in, 0 for none
+ */
+public record TransferHeader(int status, String fileName, long size, ByteRange range, String encoding,
+                             String mimeType, byte[] contentHash, long downloadToken) {
+
+    static TransferHeader notFound() {
+        return new TransferHeader(HttpStatus.NOT_FOUND.code(), "", -1, null, null, "", null, 0);
+    }
+
+    static TransferHeader rangeNotSatisfiable(long size, long downloadToken) {
+        return new TransferHeader(HttpStatus.RANGE_NOT_SATISFIABLE.code(), "", size, null, null, "", null,
+                downloadToken);
+    }
+}
@@ -0,0 +1,196 @@
+package com.banda.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single transfer endpoint shared by every share. One selector thread accepts connections
+ * and reads the handshake without blocking; the connection is then switched to blocking
+ * mode and handed to the {@link ShareRouter} for sending.
+ * <p>
+ * The handshake is a single {@link TransferProtocol} request frame: the share code, optionally a
+ * byte range, the compression the downloader accepts, and whether the connection continues a
+ * download that another connection already started.
+ */
+public class TransferListener implements Closeable {
+    private static final long HANDSHAKE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final Logger log = LoggerFactory.getLogger(TransferListener.class);
+
+    /**
+     * Receives connections whose handshake named a share code.
+     */
+    public interface ShareRouter {
+        void route(TransferRequest request, SocketChannel channel);
+    }
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ShareRouter router;
+    private final Thread selectorThread;
+    private volatile boolean running;
+
+    public TransferListener(int port, ShareRouter router) throws IOException {
+        this.router = router;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        // Only the relay in this process talks to the sharer; nothing else may reach it directly
+        this.serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.selectorThread = new Thread(this::runLoop, "banda-transfer-listener");
+        this.selectorThread.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        selectorThread.start();
+        log.info("Transfer listener started on port: {}", getPort());
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    private void runLoop() {
+        List<Handoff> handoffs = new ArrayList<>();
+        while (running) {
+            try {
+                selector.select(TimeUnit.SECONDS.toMillis(1));
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        readHandshake(key, handoffs);
+                    }
+                }
+                closeStaleHandshakes();
+                dispatch(handoffs);
+            } catch (IOException e) {
+                if (running) {
+                    log.error("Transfer listener error: {}", e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new Handshake(System.nanoTime() + HANDSHAKE_TIMEOUT_NANOS));
+        }
+    }
+
+    private void readHandshake(SelectionKey key, List<Handoff> handoffs) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Handshake handshake = (Handshake) key.attachment();
+        try {
+            if (channel.read(handshake.buffer) == -1) {
+                close(key);
+                return;
+            }
+            TransferRequest request;
+            try {
+                request = TransferProtocol.decodeRequest(handshake.buffer);
+            } catch (ProtocolException e) {
+                log.warn("Malformed handshake from {}: {}", channel.getRemoteAddress(), e.getMessage());
+                close(key);
+                return;
+            }
+            if (request == null) {
+                return; // frame not complete yet
+            }
+            // Deregister now; the channel can only go back to blocking mode after the next select
+            key.cancel();
+            handoffs.add(new Handoff(request, channel));
+        } catch (IOException e) {
+            log.warn("Failed to read handshake: {}", e.getMessage());
+            close(key);
+        }
+    }
+
+    private void dispatch(List<Handoff> handoffs) throws IOException {
+        if (handoffs.isEmpty()) {
+            return;
+        }
+        selector.selectNow(); // flush cancelled keys
+        for (Handoff handoff : handoffs) {
+            try {
+                handoff.channel.configureBlocking(true);
+                router.route(handoff.request, handoff.channel);
+            } catch (IOException | RuntimeException e) {
+                log.error("Failed to route share {}: {}", handoff.request.code(), e.getMessage());
+                handoff.channel.close();
+            }
+        }
+        handoffs.clear();
+    }
+
+    private void closeStaleHandshakes() {
+        long now = System.nanoTime();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Handshake handshake && now - handshake.deadline > 0) {
+                close(key);
+            }
+        }
+    }
+
+    private static void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            log.debug("Error closing transfer connection: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        int port = getPort();
+        selector.close();
+        serverChannel.close();
+        log.info("Transfer listener on port {} stopped", port);
+    }
+
+    private static final class Handshake {
+        private final ByteBuffer buffer = ByteBuffer.allocate(TransferProtocol.MAX_REQUEST_LENGTH);
+        private final long deadline;
+
+        private Handshake(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+
+    private record Handoff(TransferRequest request, SocketChannel channel) {}
+}
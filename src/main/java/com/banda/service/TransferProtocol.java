@@ -0,0 +1,211 @@
+package com.banda.service;
+
+import com.banda.utils.ByteRange;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary frames exchanged on the transfer port, all integers big-endian.
+ * <p>
+ * Request, downloader to sharer:
+ * <pre>
+ *   magic "BNDA" (4) | version (1) | flags (1) | code (4) | [first (8) | last (8)] if RANGE
+ *   | [download token (8)] if SEGMENT | [address length (1) | client address (4 or 16)] if CLIENT
+ * </pre>
+ * Reply, sharer to downloader, followed by the body until the connection closes:
+ * <pre>
+ *   magic "BNDA" (4) | version (1) | flags (1) | status (2) | size (8)
+ *   | [first (8) | last (8)] if RANGE | name length (2) | name (UTF-8)
+ *   | MIME length (1) | MIME (US-ASCII) | [SHA-256 (32)] if HASH | [download token (8)] if TOKEN
+ * </pre>
+ * A frame with an unknown version is refused rather than guessed at.
+ */
+final class TransferProtocol {
+    static final int MAGIC = 0x424E4441; // "BNDA"
+    static final byte VERSION = 1;
+
+    // Flags shared by both frames
+    static final int FLAG_RANGE = 1;
+    static final int FLAG_GZIP = 1 << 1;
+    static final int FLAG_DEFLATE = 1 << 2;
+    // Request only
+    static final int FLAG_SEGMENT = 1 << 3;
+    static final int FLAG_CLIENT = 1 << 6;
+    // Reply only
+    static final int FLAG_HASH = 1 << 4;
+    static final int FLAG_TOKEN = 1 << 5;
+
+    static final int REQUEST_FIXED_LENGTH = 10;
+    static final int MAX_REQUEST_LENGTH = REQUEST_FIXED_LENGTH + 16 + 8 + 1 + 16;
+    private static final int HASH_LENGTH = 32;
+    private static final int MAX_NAME_LENGTH = 1024;
+
+    private TransferProtocol() {
+        // static codec
+    }
+
+    static byte[] encodeRequest(TransferRequest request) {
+        ByteRange range = request.range();
+        byte[] client = request.client() == null ? null : request.client().getAddress();
+        ByteBuffer frame = ByteBuffer.allocate(REQUEST_FIXED_LENGTH + (range == null ? 0 : 16)
+                + (request.segment() ? 8 : 0) + (client == null ? 0 : 1 + client.length));
+        int flags = (range == null ? 0 : FLAG_RANGE) | (request.segment() ? FLAG_SEGMENT : 0)
+                | (client == null ? 0 : FLAG_CLIENT) | encodingFlag(request.compression());
+        frame.putInt(MAGIC).put(VERSION).put((byte) flags).putInt(request.code());
+        if (range != null) {
+            frame.putLong(range.first()).putLong(range.last());
+        }
+        if (request.segment()) {
+            frame.putLong(request.downloadToken());
+        }
+        if (client != null) {
+            frame.put((byte) client.length).put(client);
+        }
+        return frame.array();
+    }
+
+    /**
+     * Decodes a request from the bytes received so far, {@code [0, buffer.position())}.
+     *
+     * @return the request, or null if more bytes are needed
+     * @throws ProtocolException if the bytes are not a request frame
+     */
+    static TransferRequest decodeRequest(ByteBuffer buffer) throws ProtocolException {
+        int received = buffer.position();
+        if (received < REQUEST_FIXED_LENGTH) {
+            return null;
+        }
+        checkPreamble(buffer.getInt(0), buffer.get(4));
+        int flags = buffer.get(5);
+        int code = buffer.getInt(6);
+        int length = REQUEST_FIXED_LENGTH + ((flags & FLAG_RANGE) != 0 ? 16 : 0) + ((flags & FLAG_SEGMENT) != 0 ? 8 : 0);
+        int clientOffset = length;
+        if ((flags & FLAG_CLIENT) != 0) {
+            if (received <= clientOffset) {
+                return null;
+            }
+            int addressLength = buffer.get(clientOffset);
+            if (addressLength != 4 && addressLength != 16) {
+                throw new ProtocolException("Bad client address length " + addressLength);
+            }
+            length += 1 + addressLength;
+        }
+        if (received < length) {
+            return null;
+        }
+        ByteRange range = null;
+        if ((flags & FLAG_RANGE) != 0) {
+            range = validRange(buffer.getLong(REQUEST_FIXED_LENGTH), buffer.getLong(REQUEST_FIXED_LENGTH + 8));
+        }
+        long downloadToken = 0;
+        if ((flags & FLAG_SEGMENT) != 0) {
+            downloadToken = buffer.getLong(clientOffset - 8);
+            if (downloadToken == 0) {
+                throw new ProtocolException("Segment request without a download token");
+            }
+        }
+        InetAddress client = null;
+        if ((flags & FLAG_CLIENT) != 0) {
+            byte[] address = new byte[length - clientOffset - 1];
+            buffer.get(clientOffset + 1, address);
+            try {
+                client = InetAddress.getByAddress(address);
+            } catch (UnknownHostException e) {
+                throw new ProtocolException("Bad client address: " + e.getMessage());
+            }
+        }
+        return new TransferRequest(code, range, encodingOf(flags), downloadToken, client);
+    }
+
+    static ByteBuffer encodeHeader(TransferHeader header) {
+        byte[] name = header.fileName().getBytes(StandardCharsets.UTF_8);
+        byte[] mime = header.mimeType().getBytes(StandardCharsets.US_ASCII);
+        if (name.length > MAX_NAME_LENGTH || mime.length > 255) {
+            throw new IllegalArgumentException("File name or MIME type too long for a transfer header");
+        }
+        ByteRange range = header.range();
+        byte[] hash = header.contentHash();
+        boolean token = header.downloadToken() != 0;
+        int flags = (range == null ? 0 : FLAG_RANGE) | encodingFlag(header.encoding()) | (hash == null ? 0 : FLAG_HASH)
+                | (token ? FLAG_TOKEN : 0);
+        ByteBuffer frame = ByteBuffer.allocate(16 + (range == null ? 0 : 16) + 2 + name.length + 1 + mime.length
+                + (hash == null ? 0 : HASH_LENGTH) + (token ? 8 : 0));
+        frame.putInt(MAGIC).put(VERSION).put((byte) flags).putShort((short) header.status()).putLong(header.size());
+        if (range != null) {
+            frame.putLong(range.first()).putLong(range.last());
+        }
+        frame.putShort((short) name.length).put(name);
+        frame.put((byte) mime.length).put(mime);
+        if (hash != null) {
+            frame.put(hash);
+        }
+        if (token) {
+            frame.putLong(header.downloadToken());
+        }
+        return frame.flip();
+    }
+
+    /**
+     * Reads a reply header; the stream is left at the first byte of the body.
+     */
+    static TransferHeader readHeader(DataInputStream in) throws IOException {
+        checkPreamble(in.readInt(), in.readByte());
+        int flags = in.readUnsignedByte();
+        int status = in.readUnsignedShort();
+        long size = in.readLong();
+        ByteRange range = (flags & FLAG_RANGE) != 0 ? validRange(in.readLong(), in.readLong()) : null;
+        int nameLength = in.readUnsignedShort();
+        if (nameLength > MAX_NAME_LENGTH) {
+            throw new ProtocolException("File name of " + nameLength + " bytes in transfer header");
+        }
+        String name = new String(readBytes(in, nameLength), StandardCharsets.UTF_8);
+        String mime = new String(readBytes(in, in.readUnsignedByte()), StandardCharsets.US_ASCII);
+        byte[] hash = (flags & FLAG_HASH) != 0 ? readBytes(in, HASH_LENGTH) : null;
+        long downloadToken = (flags & FLAG_TOKEN) != 0 ? in.readLong() : 0;
+        return new TransferHeader(status, name, size, range, encodingOf(flags), mime, hash, downloadToken);
+    }
+
+    private static byte[] readBytes(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void checkPreamble(int magic, byte version) throws ProtocolException {
+        if (magic != MAGIC) {
+            throw new ProtocolException("Not a transfer frame");
+        }
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported transfer protocol version " + version);
+        }
+    }
+
+    private static ByteRange validRange(long first, long last) throws ProtocolException {
+        // Same forms as a Range header spec: a suffix of the last `last` bytes, or first to last (-1 for the end)
+        boolean valid = first == -1 ? last > 0 : first >= 0 && (last == -1 || last >= first);
+        if (!valid) {
+            throw new ProtocolException("Invalid range " + first + ", " + last);
+        }
+        return new ByteRange(first, last);
+    }
+
+    private static int encodingFlag(String encoding) {
+        if ("gzip".equals(encoding)) {
+            return FLAG_GZIP;
+        }
+        return "deflate".equals(encoding) ? FLAG_DEFLATE : 0;
+    }
+
+    private static String encodingOf(int flags) {
+        if ((flags & FLAG_GZIP) != 0) {
+            return "gzip";
+        }
+        return (flags & FLAG_DEFLATE) != 0 ? "deflate" : null;
+    }
+}
@@ -0,0 +1,26 @@
+package com.banda.service;
+
+import com.banda.utils.ByteRange;
+
+import java.net.InetAddress;
+
+/**
+ * What a downloader asked the transfer listener for.
+ *
+ * @param code share code
+ * @param range requested byte range, or null for the whole file
+ * @param compression encoding the downloader accepts ({@code gzip} or {@code deflate}), or null for raw bytes
+ * @param downloadToken token from the reply to the first connection of a download that is already under
+ *                      way, when this connection fetches one more segment of it and so must not count as
+ *                      another download of the share; 0 for a new download
+ * @param client address of the HTTP client the relay forwards the bytes to, which per-client send
+ *               limits apply to, or null if not known
+ */
+public record TransferRequest(int code, ByteRange range, String compression, long downloadToken,
+                              InetAddress client) {
+
+    /** True when this connection continues a download instead of starting one. */
+    public boolean segment() {
+        return downloadToken != 0;
+    }
+}
@@ -0,0 +1,239 @@
+package com.banda.service;
+
+import com.banda.exceptions.UploadRejectedException;
+import com.banda.exceptions.UploadTooLargeException;
+import com.banda.metrics.Counter;
+import com.banda.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether an upload may start, before any of its body is read. An upload is turned away
+ * while {@code maxConcurrent} uploads are already running, when its declared size would take the
+ * uploads in progress over {@code maxBytesInFlight}, or when storing it could leave less than
+ * {@code minFreeBytes} usable in the upload directory. Turning an upload away costs a header
+ * check and a file system stat, so under overload the server answers at once instead of
+ * accepting bodies it has no room for.
+ * <p>
+ * Uploads without a Content-Length are charged an equal share of the byte budget, and no upload
+ * may read more of its body than it was charged for (see {@link Permit#limit}). Admission
+ * takes no lock: a permit is reserved first and handed back if a limit turns out to be exceeded,
+ * so two racing uploads may both be refused but a limit is never overrun.
+ */
+public class UploadAdmission {
+    private static final Logger log = LoggerFactory.getLogger(UploadAdmission.class);
+    private static final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private static final Counter admitted = metrics.counter("banda_upload_admissions_total",
+            "Uploads admitted or refused before reading their body", "result", "admitted");
+
+    private final int maxConcurrent;
+    private final long maxBytesInFlight;
+    private final long minFreeBytes;
+    private final Duration retryAfter;
+    private final FileStore fileStore;
+    private final long unknownLengthCharge;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong reservedBytes = new AtomicLong();
+
+    /**
+     * @param uploadDir directory uploads are written to, checked for free space
+     * @param maxConcurrent uploads allowed to run at once
+     * @param maxBytesInFlight declared bytes of all running uploads, 0 for no limit
+     * @param minFreeBytes usable space to leave in {@code uploadDir}, 0 to skip the check
+     * @param retryAfter sent to refused clients as {@code Retry-After}
+     */
+    public UploadAdmission(Path uploadDir, int maxConcurrent, long maxBytesInFlight, long minFreeBytes,
+                           Duration retryAfter) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxBytesInFlight = maxBytesInFlight;
+        this.minFreeBytes = minFreeBytes;
+        this.retryAfter = retryAfter;
+        this.fileStore = minFreeBytes > 0 ? fileStoreOf(uploadDir) : null;
+        this.unknownLengthCharge = maxBytesInFlight > 0 ? maxBytesInFlight / maxConcurrent : 0;
+    }
+
+    public static UploadAdmission fromSystemProperties(Path uploadDir) {
+        return new UploadAdmission(uploadDir,
+                Integer.getInteger("banda.upload.max.concurrent", 64),
+                Long.getLong("banda.upload.max.bytes.in.flight", 8L * 1024 * 1024 * 1024),
+                Long.getLong("banda.upload.min.free.bytes", 1024L * 1024 * 1024),
+                Duration.ofSeconds(Long.getLong("banda.upload.retry.after.seconds", 5)));
+    }
+
+    /**
+     * Admits an upload or refuses it.
+     *
+     * @param declaredLength the request's Content-Length, or -1 if it has none
+     * @return the permit held while the upload runs, to be closed when it is done
+     * @throws UploadRejectedException if a limit is reached; the client may retry later
+     * @throws UploadTooLargeException if the upload could never fit in the byte budget
+     */
+    public Permit admit(long declaredLength) {
+        if (maxBytesInFlight > 0 && declaredLength > maxBytesInFlight) {
+            rejected("too_large");
+            throw new UploadTooLargeException("Upload of " + declaredLength
+                    + " bytes exceeds the limit of " + maxBytesInFlight + " bytes");
+        }
+        long charge = declaredLength >= 0 ? declaredLength : unknownLengthCharge;
+
+        if (active.incrementAndGet() > maxConcurrent) {
+            active.decrementAndGet();
+            throw reject("concurrency", maxConcurrent + " uploads already in progress");
+        }
+        long reserved = reservedBytes.addAndGet(charge);
+        if (maxBytesInFlight > 0 && reserved > maxBytesInFlight) {
+            release(charge);
+            throw reject("bytes_in_flight", "Upload byte budget of " + maxBytesInFlight + " bytes in use");
+        }
+        // Running uploads have written part of their reservation already, so this errs on the safe side
+        long usable = usableBytes();
+        if (usable >= 0 && usable - reserved < minFreeBytes) {
+            release(charge);
+            throw reject("disk_space", "Not enough free space to store the upload");
+        }
+        admitted.increment();
+        // Without a byte budget an upload of unknown length has nothing to be held to
+        return new Permit(charge, declaredLength >= 0 || maxBytesInFlight > 0 ? charge : -1);
+    }
+
+    public int activeCount() {
+        return active.get();
+    }
+
+    public long reservedBytes() {
+        return reservedBytes.get();
+    }
+
+    /**
+     * @return usable bytes in the upload directory, or -1 if free space is not checked or unknown
+     */
+    public long usableBytes() {
+        if (fileStore == null) {
+            return -1;
+        }
+        try {
+            return fileStore.getUsableSpace();
+        } catch (IOException e) {
+            log.warn("Could not read free space of the upload directory: {}", e.getMessage());
+            return -1;
+        }
+    }
+
+    private UploadRejectedException reject(String reason, String message) {
+        rejected(reason);
+        return new UploadRejectedException(message, retryAfter);
+    }
+
+    private static void rejected(String reason) {
+        metrics.counter("banda_upload_admissions_total", "Uploads admitted or refused before reading their body",
+                "result", reason).increment();
+    }
+
+    private void release(long charge) {
+        reservedBytes.addAndGet(-charge);
+        active.decrementAndGet();
+    }
+
+    private static FileStore fileStoreOf(Path uploadDir) {
+        try {
+            return Files.getFileStore(uploadDir);
+        } catch (IOException e) {
+            log.warn("Free space of {} cannot be checked, uploads are admitted without it: {}", uploadDir, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * An admitted upload's share of the limits, given back on {@link #close()}.
+     */
+    public final class Permit implements AutoCloseable {
+        private final long charge;
+        private final long bodyLimit;
+        private boolean closed;
+
+        private Permit(long charge, long bodyLimit) {
+            this.charge = charge;
+            this.bodyLimit = bodyLimit;
+        }
+
+        /**
+         * Holds the request body to the bytes this upload was charged for: its declared length, or
+         * its share of the byte budget if it declared none. Reading past that throws
+         * {@link UploadTooLargeException}.
+         */
+        public InputStream limit(InputStream body) {
+            return bodyLimit >= 0 ? new LimitedBody(body, bodyLimit) : body;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(charge);
+            }
+        }
+    }
+
+    private static final class LimitedBody extends FilterInputStream {
+        private final long limit;
+        private long remaining;
+
+        private LimitedBody(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            // One byte past the limit is enough to tell an oversized body from one that just fits
+            int read = in.read(b, off, (int) Math.min(len, remaining + 1));
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining + 1));
+            count(skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void count(long bytes) {
+            remaining -= bytes;
+            if (remaining < 0) {
+                throw new UploadTooLargeException("Upload body exceeds the " + limit + " bytes it was admitted for");
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.banda.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One {@code first-last} byte range as written in an HTTP {@code Range} header (RFC 9110 §14.1.2).
+ * {@code first == -1} is a suffix range of the last {@code last} bytes; {@code last == -1} runs to the end.
+ */
+public record ByteRange(long first, long last) {
+    private static final String BYTES_UNIT = "bytes=";
+
+    /**
+     * Parses a {@code Range} header value.
+     *
+     * @return the requested ranges, or an empty list if the header is absent or malformed (and must be ignored)
+     */
+    public static List<ByteRange> parseHeader(String header) {
+        if (header == null || !header.startsWith(BYTES_UNIT)) {
+            return List.of();
+        }
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String spec : header.substring(BYTES_UNIT.length()).split(",")) {
+            ByteRange range = parse(spec.trim());
+            if (range == null) {
+                return List.of();
+            }
+            ranges.add(range);
+        }
+        return ranges;
+    }
+
+    /**
+     * Parses a single {@code first-last} spec.
+     *
+     * @return the range, or null if malformed
+     */
+    public static ByteRange parse(String spec) {
+        int dash = spec.indexOf('-');
+        if (dash == -1) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                long suffix = Long.parseLong(last);
+                return suffix > 0 ? new ByteRange(-1, suffix) : null;
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? -1 : Long.parseLong(last);
+            if (start < 0 || (end != -1 && end < start)) {
+                return null;
+            }
+            return new ByteRange(start, end);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Resolves this range against a representation of {@code size} bytes.
+     *
+     * @return the absolute, inclusive range, or null if it is not satisfiable
+     */
+    public ByteRange resolve(long size) {
+        if (first == -1) {
+            return size == 0 ? null : new ByteRange(Math.max(0, size - last), size - 1);
+        }
+        if (first >= size) {
+            return null;
+        }
+        return new ByteRange(first, last == -1 ? size - 1 : Math.min(last, size - 1));
+    }
+
+    /** Length of an absolute range. */
+    public long length() {
+        return last - first + 1;
+    }
+
+    /** Value for a {@code Content-Range} header of an absolute range. */
+    public String contentRange(long size) {
+        return "bytes " + first + "-" + last + "/" + size;
+    }
+
+    /** Value for the {@code Content-Range} header of a 416 reply, when no range fits {@code size} bytes. */
+    public static String unsatisfiedContentRange(long size) {
+        return "bytes */" + size;
+    }
+
+    @Override
+    public String toString() {
+        if (first == -1) {
+            return "-" + last;
+        }
+        return first + "-" + (last == -1 ? "" : String.valueOf(last));
+    }
+}
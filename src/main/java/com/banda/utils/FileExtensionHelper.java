@@ -1,59 +1,94 @@
 package com.banda.utils;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.nio.file.*;
+
+import com.banda.metrics.Histogram;
+import com.banda.metrics.MetricsRegistry;
 import org.apache.tika.Tika;
+import org.apache.tika.metadata.HttpHeaders;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.metadata.TikaCoreProperties;
+import org.apache.tika.mime.MediaType;
 import org.apache.tika.mime.MimeType;
 import org.apache.tika.mime.MimeTypes;
 import org.apache.tika.mime.MimeTypeException;
-import org.apache.commons.io.FilenameUtils;
 
 /**
- * Utility to rename temporary files based on detected MIME type using Apache Tika.
+ * Utility to pick file extensions from the detected MIME type using Apache Tika.
  */
 public class FileExtensionHelper {
     private static final Tika tika = new Tika();
     private static final MimeTypes mimeRegistry = MimeTypes.getDefaultMimeTypes();
+    private static final Histogram detectionTime = MetricsRegistry.getDefault().histogram(
+            "banda_detection_duration_seconds", "Time to detect the type of an upload with Tika",
+            Histogram.DURATION_BOUNDS, Histogram.NANOS);
+
+    /** How many leading bytes the magic detection looks at; more never changes the result. */
+    public static final int DETECTION_PREFIX_LENGTH = mimeRegistry.getMinLength();
 
     private FileExtensionHelper() {
         // utility class
     }
 
     /**
-     * Renames the given temporary file to have the correct extension based on its content type.
-     * Uses Apache Tika for detection and recommended extensions. Leaves .tmp if no mapping found.
+     * Picks the extension for content from its first bytes, using the declared Content-Type and
+     * the client's file name as hints. Works on bytes already in memory, nothing is read from disk.
      *
-     * @param tmpFile Path to the .tmp file
-     * @return Path to the renamed file (may still end in .tmp)
-     * @throws IOException if probing or moving fails
+     * @param prefix the first bytes of the content, {@link #DETECTION_PREFIX_LENGTH} of them unless the content is shorter
+     * @param length number of valid bytes in {@code prefix}
+     * @param declaredType Content-Type sent with the content, or null
+     * @param fileName name the client gave the file, or null
+     * @return the extension including the dot, ".tmp" if no mapping is found
      */
-    public static Path renameWithDetectedExtension(Path tmpFile) throws IOException {
-        // 1) Detect MIME type via Tika
-        String mime = tika.detect(tmpFile);
+    public static String detectExtension(byte[] prefix, int length, String declaredType, String fileName) {
+        Metadata metadata = new Metadata();
+        if (fileName != null) {
+            metadata.set(TikaCoreProperties.RESOURCE_NAME_KEY, fileName);
+        }
+        if (declaredType != null) {
+            metadata.set(HttpHeaders.CONTENT_TYPE, declaredType);
+        }
+        long start = System.nanoTime();
+        try {
+            return extensionFor(tika.getDetector().detect(new ByteArrayInputStream(prefix, 0, length), metadata).toString());
+        } catch (IOException e) {
+            // Cannot happen on an in-memory stream
+            return ".tmp";
+        } finally {
+            detectionTime.recordSince(start);
+        }
+    }
+
+    /**
+     * Whether a stored file is worth compressing on the wire, judged by the MIME type its extension
+     * maps to. Text formats (plain text, CSV, logs, JSON, XML, source code) are; images, video,
+     * archives and unknown binaries are already dense and are not.
+     */
+    public static boolean isCompressible(String fileName) {
+        MediaType type = MediaType.parse(mimeTypeOf(fileName));
+        return type != null && mimeRegistry.getMediaTypeRegistry().isInstanceOf(type, MediaType.TEXT_PLAIN);
+    }
+
+    /**
+     * MIME type of a stored file, from its extension; stored names carry the extension detected
+     * from the content on upload. "application/octet-stream" when the extension is not known.
+     */
+    public static String mimeTypeOf(String fileName) {
+        return tika.detect(fileName);
+    }
+
+    private static String extensionFor(String mime) {
         if (mime == null || mime.isBlank()) {
             mime = "application/octet-stream";
         }
-
-        // 2) Lookup recommended extension, default to ".tmp"
-        String ext;
         try {
             MimeType mimeType = mimeRegistry.forName(mime);
-            ext = mimeType.getExtension();
-            if (ext == null || ext.isEmpty()) {
-                ext = ".tmp";
-            }
+            String ext = mimeType.getExtension();
+            return ext == null || ext.isEmpty() ? ".tmp" : ext;
         } catch (MimeTypeException e) {
             // Leave .tmp if unrecognized
-            ext = ".tmp";
+            return ".tmp";
         }
-
-        // (strip existing extension)
-        String baseName = FilenameUtils.getBaseName(tmpFile.getFileName().toString());
-
-
-        Path finalPath = tmpFile.resolveSibling(baseName + ext);
-
-        //   Rename (move) atomically within the same directory
-        return Files.move(tmpFile, finalPath, StandardCopyOption.ATOMIC_MOVE);
     }
 }
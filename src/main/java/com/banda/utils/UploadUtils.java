@@ -1,16 +1,14 @@
 package com.banda.utils;
 
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class UploadUtils {
+    // Share codes are no longer ports, but the UI still accepts only 1-65535
+    private static final int MIN_CODE = 10000;
+    private static final int MAX_CODE = 65535;
 
     public static int generateCode(){
-        int DYNAMIC_STARTING_PORT = 49152;
-        int DYNAMIC_ENDING_PORT   = 85535;
-
-        Random random = new Random();
-
-        // Generate a random port number between DYNAMIC_STARTING_PORT and DYNAMIC_ENDING_PORT
-        return random.nextInt(DYNAMIC_ENDING_PORT - DYNAMIC_STARTING_PORT) + DYNAMIC_STARTING_PORT;
+        // Generate a random share code between MIN_CODE and MAX_CODE (inclusive)
+        return ThreadLocalRandom.current().nextInt(MIN_CODE, MAX_CODE + 1);
     }
 }
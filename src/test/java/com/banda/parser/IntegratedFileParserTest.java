@@ -0,0 +1,185 @@
+package com.banda.parser;
+
+import com.banda.exceptions.ParsingException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IntegratedFileParserTest {
+    private static final String BOUNDARY = "----banda7MA4YWxkTrZu0gW";
+
+    private final IntegratedFileParser parser = new IntegratedFileParser();
+
+    @TempDir
+    Path uploadDir;
+
+    @Test
+    void parsesDelimitersSplitAtEveryReadOffset() throws IOException {
+        byte[] first = ascii("first part body");
+        byte[] second = ascii("second part, a little longer than the first");
+        byte[] body = multipart(part("a.bin", first), part("b.bin", second));
+
+        for (int split = 1; split < body.length; split++) {
+            List<ParseResult> results = parse(new SplitInputStream(body, split));
+
+            assertEquals(2, results.size(), "split at " + split);
+            assertArrayEquals(first, Files.readAllBytes(results.get(0).filePath()), "split at " + split);
+            assertArrayEquals(second, Files.readAllBytes(results.get(1).filePath()), "split at " + split);
+            for (ParseResult result : results) {
+                Files.delete(result.filePath());
+            }
+        }
+    }
+
+    @Test
+    void parsesDelimiterStraddlingTheReadWindow() throws IOException {
+        // Contents around the window size put the closing delimiter across two full reads
+        for (int length = 8192 - 200; length <= 8192 + 200; length++) {
+            byte[] content = new byte[length];
+            Arrays.fill(content, (byte) 'x');
+
+            ParseResult result = parseSingle(multipart(part("window.bin", content)));
+
+            assertArrayEquals(content, Files.readAllBytes(result.filePath()), "length " + length);
+            Files.delete(result.filePath());
+        }
+    }
+
+    @Test
+    void keepsNearMissDelimitersInContent() throws IOException {
+        byte[] content = ascii("before\r\n--" + BOUNDARY.substring(0, BOUNDARY.length() - 1) + "X after"
+                + "\r\n-" + BOUNDARY + "\r\n--" + BOUNDARY.toUpperCase() + "\r\n--");
+
+        ParseResult result = parseSingle(multipart(part("near.bin", content)));
+
+        assertArrayEquals(content, Files.readAllBytes(result.filePath()));
+        assertEquals(sha256(content), result.contentHash());
+    }
+
+    @Test
+    void ignoresPreambleAndEpilogue() throws IOException {
+        byte[] content = ascii("payload");
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(ascii("This is the preamble, it is to be ignored.\r\n"));
+        body.write(multipart(part("c.bin", content)));
+        body.write(ascii("This is the epilogue.\r\n--" + BOUNDARY + "\r\nstill epilogue"));
+
+        ParseResult result = parseSingle(body.toByteArray());
+
+        assertEquals("c.bin", result.fileName());
+        assertArrayEquals(content, Files.readAllBytes(result.filePath()));
+    }
+
+    @Test
+    void storesEmptyFilePart() throws IOException {
+        byte[] content = new byte[0];
+
+        List<ParseResult> results = parse(new ByteArrayInputStream(
+                multipart(part("empty.bin", content), part("after.bin", ascii("after")))));
+
+        assertEquals(2, results.size());
+        assertEquals("empty.bin", results.get(0).fileName());
+        assertEquals(0, Files.size(results.get(0).filePath()));
+        assertEquals(sha256(content), results.get(0).contentHash());
+        assertArrayEquals(ascii("after"), Files.readAllBytes(results.get(1).filePath()));
+    }
+
+    @Test
+    void failsAndDeletesPartialFilesWithoutClosingDelimiter() throws IOException {
+        byte[] large = new byte[256 * 1024];
+        Arrays.fill(large, (byte) 'y');
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(ascii("--" + BOUNDARY + "\r\n"));
+        body.write(part("complete.bin", ascii("complete")));
+        body.write(ascii("\r\n--" + BOUNDARY + "\r\n"));
+        body.write(part("truncated.bin", large));
+
+        assertThrows(ParsingException.class, () -> parse(new ByteArrayInputStream(body.toByteArray())));
+
+        try (Stream<Path> files = Files.list(uploadDir)) {
+            assertEquals(List.of(), files.toList());
+        }
+    }
+
+    private List<ParseResult> parse(InputStream body) throws IOException {
+        return parser.parseMultipartFiles(body, BOUNDARY, uploadDir.toString());
+    }
+
+    private ParseResult parseSingle(byte[] body) throws IOException {
+        List<ParseResult> results = parse(new ByteArrayInputStream(body));
+        assertEquals(1, results.size());
+        return results.get(0);
+    }
+
+    /**
+     * Headers and content of one file part, without the delimiters around it.
+     */
+    private static byte[] part(String filename, byte[] content) throws IOException {
+        ByteArrayOutputStream part = new ByteArrayOutputStream();
+        part.write(ascii("Content-Disposition: form-data; name=\"file\"; filename=\"" + filename + "\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n"));
+        part.write(content);
+        return part.toByteArray();
+    }
+
+    private static byte[] multipart(byte[]... parts) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            body.write(ascii(body.size() == 0 ? "--" + BOUNDARY + "\r\n" : "\r\n--" + BOUNDARY + "\r\n"));
+            body.write(part);
+        }
+        body.write(ascii("\r\n--" + BOUNDARY + "--\r\n"));
+        return body.toByteArray();
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String sha256(byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Returns the first {@code split} bytes from its first read and the rest afterwards, so a
+     * delimiter can be cut at any offset.
+     */
+    private static final class SplitInputStream extends ByteArrayInputStream {
+        private int split;
+
+        SplitInputStream(byte[] data, int split) {
+            super(data);
+            this.split = split;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            if (split > 0) {
+                len = Math.min(len, split - pos);
+                if (pos + len >= split) {
+                    split = 0;
+                }
+            }
+            return super.read(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.banda.service;
+
+import com.banda.utils.ByteRange;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransferProtocolTest {
+
+    @Test
+    void roundTripsRequest() throws IOException {
+        InetAddress ipv6 = InetAddress.getByName("2001:db8::1");
+        for (TransferRequest request : new TransferRequest[]{
+                new TransferRequest(42, null, null, 0, null),
+                new TransferRequest(7, new ByteRange(100, 199), null, 0x1234_5678_9ABC_DEF0L, null),
+                new TransferRequest(9, null, null, -1, InetAddress.getLoopbackAddress()),
+                new TransferRequest(Integer.MAX_VALUE, new ByteRange(-1, 500), "gzip", 0, ipv6),
+                new TransferRequest(3, new ByteRange(0, 0), null, 5, ipv6),
+                new TransferRequest(1, new ByteRange(4096, -1), "deflate", 0, null)}) {
+            byte[] frame = TransferProtocol.encodeRequest(request);
+
+            assertEquals(request, TransferProtocol.decodeRequest(received(frame, frame.length)));
+        }
+    }
+
+    @Test
+    void waitsForTheRestOfATruncatedRequest() throws IOException {
+        byte[] frame = TransferProtocol.encodeRequest(
+                new TransferRequest(7, new ByteRange(0, 9), null, 42, InetAddress.getByName("2001:db8::1")));
+
+        for (int length = 0; length < frame.length; length++) {
+            assertNull(TransferProtocol.decodeRequest(received(frame, length)), "first " + length + " bytes");
+        }
+    }
+
+    @Test
+    void refusesSegmentRequestWithoutToken() {
+        ByteBuffer frame = ByteBuffer.allocate(TransferProtocol.MAX_REQUEST_LENGTH);
+        frame.putInt(TransferProtocol.MAGIC).put(TransferProtocol.VERSION).put((byte) TransferProtocol.FLAG_SEGMENT)
+                .putInt(7).putLong(0);
+
+        assertThrows(ProtocolException.class, () -> TransferProtocol.decodeRequest(frame));
+    }
+
+    @Test
+    void refusesRequestWithBadClientAddressLength() {
+        ByteBuffer frame = ByteBuffer.allocate(TransferProtocol.MAX_REQUEST_LENGTH);
+        frame.putInt(TransferProtocol.MAGIC).put(TransferProtocol.VERSION).put((byte) TransferProtocol.FLAG_CLIENT)
+                .putInt(7).put((byte) 5).put(new byte[5]);
+
+        assertThrows(ProtocolException.class, () -> TransferProtocol.decodeRequest(frame));
+    }
+
+    @Test
+    void refusesRequestWithBadMagic() {
+        byte[] frame = TransferProtocol.encodeRequest(new TransferRequest(7, null, null, 0, null));
+        frame[0] = 'G';
+
+        assertThrows(ProtocolException.class, () -> TransferProtocol.decodeRequest(received(frame, frame.length)));
+    }
+
+    @Test
+    void refusesRequestWithUnknownVersion() {
+        byte[] frame = TransferProtocol.encodeRequest(new TransferRequest(7, null, null, 0, null));
+        frame[4] = TransferProtocol.VERSION + 1;
+
+        assertThrows(ProtocolException.class, () -> TransferProtocol.decodeRequest(received(frame, frame.length)));
+    }
+
+    @Test
+    void refusesRequestWithInvalidRange() {
+        ByteBuffer frame = ByteBuffer.allocate(TransferProtocol.MAX_REQUEST_LENGTH);
+        frame.putInt(TransferProtocol.MAGIC).put(TransferProtocol.VERSION).put((byte) TransferProtocol.FLAG_RANGE)
+                .putInt(7).putLong(500).putLong(100);
+
+        assertThrows(ProtocolException.class, () -> TransferProtocol.decodeRequest(frame));
+    }
+
+    @Test
+    void roundTripsHeader() throws IOException {
+        byte[] hash = new byte[32];
+        Arrays.fill(hash, (byte) 0xAB);
+        TransferHeader header = new TransferHeader(206, "résumé.pdf", 10_000, new ByteRange(500, 999),
+                "gzip", "application/pdf", hash, 0x0FED_CBA9_8765_4321L);
+        byte[] body = {1, 2, 3};
+
+        DataInputStream in = stream(concat(bytes(TransferProtocol.encodeHeader(header)), body));
+        TransferHeader decoded = TransferProtocol.readHeader(in);
+
+        assertEquals(header.status(), decoded.status());
+        assertEquals(header.fileName(), decoded.fileName());
+        assertEquals(header.size(), decoded.size());
+        assertEquals(header.range(), decoded.range());
+        assertEquals(header.encoding(), decoded.encoding());
+        assertEquals(header.mimeType(), decoded.mimeType());
+        assertArrayEquals(hash, decoded.contentHash());
+        assertEquals(header.downloadToken(), decoded.downloadToken());
+        // The stream is left at the body
+        assertArrayEquals(body, in.readAllBytes());
+    }
+
+    @Test
+    void roundTripsNotFoundHeader() throws IOException {
+        TransferHeader decoded = TransferProtocol.readHeader(
+                stream(bytes(TransferProtocol.encodeHeader(TransferHeader.notFound()))));
+
+        assertEquals(404, decoded.status());
+        assertEquals(-1, decoded.size());
+        assertNull(decoded.range());
+        assertNull(decoded.encoding());
+        assertNull(decoded.contentHash());
+        assertEquals(0, decoded.downloadToken());
+    }
+
+    @Test
+    void refusesHeaderWithBadMagic() {
+        byte[] frame = bytes(TransferProtocol.encodeHeader(TransferHeader.notFound()));
+        frame[3] = 'X';
+
+        assertThrows(ProtocolException.class, () -> TransferProtocol.readHeader(stream(frame)));
+    }
+
+    @Test
+    void failsOnTruncatedHeader() {
+        byte[] frame = bytes(TransferProtocol.encodeHeader(new TransferHeader(200, "report.txt", 12, null, null,
+                "text/plain", new byte[32], 99)));
+
+        for (int length = 0; length < frame.length; length++) {
+            byte[] truncated = Arrays.copyOf(frame, length);
+            assertThrows(EOFException.class, () -> TransferProtocol.readHeader(stream(truncated)),
+                    "first " + length + " bytes");
+        }
+    }
+
+    /** A receive buffer holding the first {@code length} bytes of a frame, positioned after them. */
+    private static ByteBuffer received(byte[] frame, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(TransferProtocol.MAX_REQUEST_LENGTH);
+        buffer.put(frame, 0, length);
+        return buffer;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] joined = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, joined, first.length, second.length);
+        return joined;
+    }
+
+    private static DataInputStream stream(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+}
@@ -0,0 +1,65 @@
+package com.banda.service;
+
+import com.banda.exceptions.UploadTooLargeException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UploadAdmissionTest {
+    private static final long BUDGET = 1000;
+    private static final int MAX_CONCURRENT = 4; // an upload of unknown length is charged 250 bytes
+
+    @TempDir
+    Path uploadDir;
+
+    @Test
+    void readsUnknownLengthBodyWithinItsShareOfTheBudget() throws IOException {
+        try (UploadAdmission.Permit permit = admission(BUDGET).admit(-1)) {
+            InputStream body = permit.limit(new ByteArrayInputStream(new byte[250]));
+
+            assertEquals(250, body.readAllBytes().length);
+        }
+    }
+
+    @Test
+    void refusesUnknownLengthBodyPastItsShareOfTheBudget() {
+        try (UploadAdmission.Permit permit = admission(BUDGET).admit(-1)) {
+            InputStream body = permit.limit(new ByteArrayInputStream(new byte[251]));
+
+            assertThrows(UploadTooLargeException.class, body::readAllBytes);
+        }
+    }
+
+    @Test
+    void refusesBodyLongerThanDeclared() {
+        try (UploadAdmission.Permit permit = admission(BUDGET).admit(100)) {
+            InputStream body = permit.limit(new ByteArrayInputStream(new byte[101]));
+
+            assertThrows(UploadTooLargeException.class, () -> {
+                while (body.read() != -1) {
+                    // one byte at a time up to the limit
+                }
+            });
+        }
+    }
+
+    @Test
+    void leavesUnknownLengthBodyUnlimitedWithoutBudget() throws IOException {
+        try (UploadAdmission.Permit permit = admission(0).admit(-1)) {
+            InputStream body = permit.limit(new ByteArrayInputStream(new byte[10_000]));
+
+            assertEquals(10_000, body.readAllBytes().length);
+        }
+    }
+
+    private UploadAdmission admission(long maxBytesInFlight) {
+        return new UploadAdmission(uploadDir, MAX_CONCURRENT, maxBytesInFlight, 0, Duration.ofSeconds(1));
+    }
+}
@@ -0,0 +1,78 @@
+package com.banda.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ByteRangeTest {
+
+    @Test
+    void parsesClosedRange() {
+        assertEquals(List.of(new ByteRange(0, 499)), ByteRange.parseHeader("bytes=0-499"));
+        assertEquals(new ByteRange(0, 499), new ByteRange(0, 499).resolve(1000));
+        assertEquals("bytes 0-499/1000", new ByteRange(0, 499).contentRange(1000));
+    }
+
+    @Test
+    void resolvesSuffixRange() {
+        List<ByteRange> ranges = ByteRange.parseHeader("bytes=-500");
+
+        assertEquals(List.of(new ByteRange(-1, 500)), ranges);
+        assertEquals(new ByteRange(500, 999), ranges.get(0).resolve(1000));
+        // A suffix longer than the representation covers all of it
+        assertEquals(new ByteRange(0, 99), ranges.get(0).resolve(100));
+        assertEquals(500, ranges.get(0).resolve(1000).length());
+    }
+
+    @Test
+    void resolvesOpenRange() {
+        List<ByteRange> ranges = ByteRange.parseHeader("bytes=9500-");
+
+        assertEquals(List.of(new ByteRange(9500, -1)), ranges);
+        assertEquals(new ByteRange(9500, 9999), ranges.get(0).resolve(10000));
+        assertEquals("bytes 9500-9999/10000", ranges.get(0).resolve(10000).contentRange(10000));
+    }
+
+    @Test
+    void clampsLastBytePastTheEnd() {
+        assertEquals(new ByteRange(10, 99), new ByteRange(10, 5000).resolve(100));
+    }
+
+    @Test
+    void keepsOverlappingAndOutOfOrderRangesAsRequested() {
+        List<ByteRange> ranges = ByteRange.parseHeader("bytes=500-999, 0-99, 50-149,-10");
+
+        assertEquals(List.of(new ByteRange(500, 999), new ByteRange(0, 99), new ByteRange(50, 149),
+                new ByteRange(-1, 10)), ranges);
+        assertEquals(List.of(new ByteRange(500, 999), new ByteRange(0, 99), new ByteRange(50, 149),
+                new ByteRange(990, 999)), ranges.stream().map(range -> range.resolve(1000)).toList());
+    }
+
+    @Test
+    void rejectsUnsatisfiableRange() {
+        assertNull(new ByteRange(1000, 1999).resolve(1000));
+        assertNull(new ByteRange(1000, -1).resolve(1000));
+        // Nothing of an empty representation can be selected, not even by a suffix
+        assertNull(new ByteRange(-1, 10).resolve(0));
+        assertNull(new ByteRange(0, -1).resolve(0));
+        assertEquals("bytes */1000", ByteRange.unsatisfiedContentRange(1000));
+    }
+
+    @Test
+    void ignoresMalformedHeader() {
+        assertEquals(List.of(), ByteRange.parseHeader(null));
+        assertEquals(List.of(), ByteRange.parseHeader(""));
+        assertEquals(List.of(), ByteRange.parseHeader("0-499"));
+        assertEquals(List.of(), ByteRange.parseHeader("items=0-499"));
+        assertEquals(List.of(), ByteRange.parseHeader("bytes="));
+        assertEquals(List.of(), ByteRange.parseHeader("bytes=abc"));
+        assertEquals(List.of(), ByteRange.parseHeader("bytes=a-b"));
+        assertEquals(List.of(), ByteRange.parseHeader("bytes=500-100"));
+        assertEquals(List.of(), ByteRange.parseHeader("bytes=-0"));
+        assertEquals(List.of(), ByteRange.parseHeader("bytes=-"));
+        // One bad spec invalidates the whole header
+        assertEquals(List.of(), ByteRange.parseHeader("bytes=0-99, x-"));
+    }
+}